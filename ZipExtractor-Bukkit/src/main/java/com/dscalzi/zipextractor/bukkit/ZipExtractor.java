@@ -24,9 +24,11 @@ import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
 import com.dscalzi.zipextractor.core.util.IPlugin;
+import com.dscalzi.zipextractor.core.util.TickTimer;
 import org.bstats.bukkit.Metrics;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -36,12 +38,21 @@ public class ZipExtractor extends JavaPlugin implements IPlugin {
     @SuppressWarnings("unused")
     private Metrics metrics;
 
+    private final TickTimer tickTimer = new TickTimer();
+
     @Override
     public void onEnable() {
         ConfigManager.initialize(this);
         MessageManager.initialize(this);
         ZServicer.initalize(ConfigManager.getInstance().getMaxQueueSize(),
-                ConfigManager.getInstance().getMaxPoolSize());
+                ConfigManager.getInstance().getMaxPoolSize(), ConfigManager.getInstance().getWorkerThreads());
+        this.getServer().getScheduler().runTaskTimer(this, tickTimer, 1, 1);
+        ZServicer.getInstance().configure(ConfigManager.getInstance(), tickTimer);
+        if (ConfigManager.getInstance().restoreUnfinishedTasks()) {
+            ZServicer.getInstance().openJournal(new File(this.getDataFolder(), "tasks.journal"));
+            // Restored once the server has started.
+            this.getServer().getScheduler().runTask(this, () -> ZServicer.getInstance().restoreUnfinished(new BukkitCommandSender(this.getServer().getConsoleSender())));
+        }
         this.getCommand("zipextractor").setExecutor(new MainExecutor(this));
         metrics = new Metrics(this, 1117);
     }
@@ -92,7 +103,7 @@ public class ZipExtractor extends JavaPlugin implements IPlugin {
     @Override
     public boolean reload() {
         if (ConfigManager.reloadStatic()) {
-            ZServicer.getInstance().setMaximumPoolSize(ConfigManager.getInstance().getMaxPoolSize());
+            ZServicer.getInstance().configure(ConfigManager.getInstance(), tickTimer);
             return true;
         }
         return false;
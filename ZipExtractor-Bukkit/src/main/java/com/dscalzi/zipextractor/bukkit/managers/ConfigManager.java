@@ -130,6 +130,18 @@ public class ConfigManager implements IConfigManager {
     public boolean warnOnConflitcts() {
         return this.config.getBoolean("general_settings.warn_on_conflicts", true);
     }
+
+    public boolean singlePassExtraction() {
+        return this.config.getBoolean("general_settings.single_pass_extraction", true);
+    }
+
+    public boolean streamPipedExtraction() {
+        return this.config.getBoolean("general_settings.stream_piped_extraction", true);
+    }
+
+    public boolean streamPipedCompression() {
+        return this.config.getBoolean("general_settings.stream_piped_compression", true);
+    }
     
     @Override
     public boolean tabCompleteFiles() {
@@ -140,6 +152,10 @@ public class ConfigManager implements IConfigManager {
         return this.config.getBoolean("general_settings.wait_on_shutdown", true);
     }
 
+    public boolean restoreUnfinishedTasks() {
+        return this.config.getBoolean("general_settings.restore_unfinished_tasks", true);
+    }
+
     public int getMaxQueueSize() {
         int limit = this.config.getInt("general_settings.max_queue_size", 3);
         return limit > 0 ? limit : Integer.MAX_VALUE;
@@ -152,6 +168,96 @@ public class ConfigManager implements IConfigManager {
         return limit;
     }
 
+    @Override
+    public boolean autoTuneThreadPool() {
+        return this.config.getBoolean("general_settings.auto_tune_thread_pool", false);
+    }
+
+    public int getMaxQueuedPerSender() {
+        return Math.max(0, this.config.getInt("general_settings.max_queued_per_sender", 0));
+    }
+
+    public int getMaxRunningPerSender() {
+        return Math.max(0, this.config.getInt("general_settings.max_running_per_sender", 0));
+    }
+
+    public int getWorkerThreads() {
+        int limit = this.config.getInt("general_settings.worker_threads", 1);
+        if (limit < 1)
+            limit = 1;
+        return limit;
+    }
+
+    public int getIOThreads() {
+        int limit = this.config.getInt("general_settings.io_threads", 1);
+        if (limit < 0)
+            limit = 0;
+        return limit;
+    }
+
+    public int getRotationalDeviceTasks() {
+        int limit = this.config.getInt("general_settings.rotational_device_tasks", 1);
+        if (limit < 0)
+            limit = 0;
+        return limit;
+    }
+
+    public int getSolidStateDeviceTasks() {
+        int limit = this.config.getInt("general_settings.solid_state_device_tasks", 4);
+        if (limit < 0)
+            limit = 0;
+        return limit;
+    }
+
+    public List<String> getDeviceTaskLimits() {
+        return this.config.getStringList("general_settings.device_task_limits");
+    }
+
+    public int getXZPreset() {
+        return this.config.getInt("general_settings.xz_preset", 6);
+    }
+
+    public int getXZDictionarySize() {
+        int size = this.config.getInt("general_settings.xz_dictionary_size", 0);
+        return size > 0 ? size << 20 : 0;
+    }
+
+    public long getMemoryBudget() {
+        long budget = this.config.getLong("general_settings.memory_budget", 0);
+        if (budget == 0)
+            return Runtime.getRuntime().maxMemory() / 2;
+        return budget > 0 ? budget << 20 : 0;
+    }
+
+    public long getReadLimit() {
+        return rateOf("general_settings.read_limit");
+    }
+
+    public long getWriteLimit() {
+        return rateOf("general_settings.write_limit");
+    }
+
+    public long getTaskReadLimit() {
+        return rateOf("general_settings.task_read_limit");
+    }
+
+    public long getTaskWriteLimit() {
+        return rateOf("general_settings.task_write_limit");
+    }
+
+    public double getSlowDownTickTime() {
+        return Math.max(0, this.config.getDouble("general_settings.slow_down_tick_time", 60));
+    }
+
+    public double getPauseTickTime() {
+        return Math.max(0, this.config.getDouble("general_settings.pause_tick_time", 100));
+    }
+
+    private long rateOf(String path) {
+        double limit = this.config.getDouble(path, 0);
+        return limit > 0 ? (long) (limit * (1 << 20)) : 0;
+    }
+
     public double getSystemConfigVersion() {
         // TODO Will be implemented in a later version
         return 1.9;
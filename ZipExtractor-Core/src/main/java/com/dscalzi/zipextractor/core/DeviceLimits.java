@@ -0,0 +1,159 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dscalzi.zipextractor.core.managers.MessageManager;
+
+/**
+ * The number of tasks which may write to a single device at once. Tasks are
+ * grouped by the {@link FileStore} of their destination, and each store has
+ * its own limit on top of the size of the pool.
+ *
+ * Spinning disks slow down badly when several tasks make them seek between
+ * files, so by default they get fewer tasks than solid state drives. Where the
+ * kind of a device cannot be told, it is treated as a solid state drive.
+ * Limits can also be set for single stores, by naming any path on them.
+ */
+public class DeviceLimits {
+
+    private final Map<String, Boolean> rotational = new ConcurrentHashMap<>();
+
+    private volatile int rotationalLimit = 1;
+    private volatile int solidStateLimit = 4;
+    private volatile Map<String, Integer> overrides = Collections.emptyMap();
+
+    /**
+     * Find the store a file is, or would be, created on.
+     *
+     * @param file
+     *            The file.
+     * @return The key of the store, or null if it cannot be found.
+     */
+    public String deviceOf(File file) {
+        if (file == null)
+            return null;
+        Path path = file.toPath().toAbsolutePath();
+        // The destination is usually created by the task itself.
+        while (path != null && !Files.exists(path))
+            path = path.getParent();
+        if (path == null)
+            return null;
+        try {
+            FileStore store = Files.getFileStore(path);
+            String key = store.toString();
+            rotational.computeIfAbsent(key, k -> isRotational(store).orElse(false));
+            return key;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param device
+     *            The key of a store, see {@link #deviceOf(File)}.
+     * @return Whether or not the store is known to be on a spinning disk.
+     */
+    public boolean isRotational(String device) {
+        return device != null && rotational.getOrDefault(device, false);
+    }
+
+    /**
+     * @param device
+     *            The key of a store, see {@link #deviceOf(File)}.
+     * @return The number of tasks which may write to the store at once, or
+     *         zero for no limit.
+     */
+    public int limitOf(String device) {
+        if (device == null)
+            return 0;
+        Integer limit = overrides.get(device);
+        if (limit != null)
+            return limit;
+        return isRotational(device) ? rotationalLimit : solidStateLimit;
+    }
+
+    /**
+     * @param rotationalLimit
+     *            The limit of stores on spinning disks, or zero for none.
+     * @param solidStateLimit
+     *            The limit of every other store, or zero for none.
+     * @param overrides
+     *            Limits of single stores, formatted as <code>path=limit</code>.
+     */
+    public void setLimits(int rotationalLimit, int solidStateLimit, List<String> overrides) {
+        Map<String, Integer> resolved = new HashMap<>();
+        for (String entry : overrides) {
+            int i = entry.lastIndexOf('=');
+            String device = i < 0 ? null : deviceOf(new File(entry.substring(0, i).trim()));
+            Integer limit = null;
+            try {
+                limit = i < 0 ? null : Integer.valueOf(entry.substring(i + 1).trim());
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+            if (device == null || limit == null || limit < 0) {
+                MessageManager.inst().warn("Ignoring invalid device limit '" + entry + "'.");
+                continue;
+            }
+            resolved.put(device, limit);
+        }
+        this.rotationalLimit = Math.max(0, rotationalLimit);
+        this.solidStateLimit = Math.max(0, solidStateLimit);
+        this.overrides = resolved;
+    }
+
+    /**
+     * Tell whether a store is on a spinning disk from the block device it is
+     * mounted from. This is only known on Linux.
+     */
+    private static Optional<Boolean> isRotational(FileStore store) {
+        String name = store.name();
+        if (!name.startsWith("/dev/"))
+            return Optional.empty();
+        try {
+            // Resolves names such as /dev/mapper/x to /dev/dm-0.
+            Path dev = Paths.get(name).toRealPath();
+            Path sys = Paths.get("/sys/class/block", dev.getFileName().toString()).toRealPath();
+            // Partitions have no queue of their own, their disk does.
+            for (Path p : new Path[] { sys, sys.getParent() }) {
+                Path flag = p == null ? null : p.resolve("queue").resolve("rotational");
+                if (flag != null && Files.isReadable(flag))
+                    return Optional.of("1".equals(new String(Files.readAllBytes(flag), StandardCharsets.US_ASCII).trim()));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unknown.
+        }
+        return Optional.empty();
+    }
+
+}
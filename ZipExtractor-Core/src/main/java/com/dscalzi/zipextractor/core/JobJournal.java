@@ -0,0 +1,329 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.dscalzi.zipextractor.core.managers.MessageManager;
+
+/**
+ * An append-only record of the extractions and compressions submitted to the
+ * {@link ZServicer}, so that the ones which did not finish can be requested
+ * again after a restart.
+ *
+ * Every record is a single line holding its own checksum, and a line torn by a
+ * crash fails its checksum and is skipped. Records are written by a thread of
+ * the journal's own, so that submitting a task never waits for the disk. The
+ * records made while a write is in progress are written and synced together
+ * with the next one. Once the records of finished jobs far outnumber the
+ * others, the journal is rewritten to a temporary file which then replaces it,
+ * so it stays about as large as the queue.
+ */
+public class JobJournal implements Closeable {
+
+    private static final char SUBMITTED = 'S';
+    private static final char STARTED = 'B';
+    private static final char FINISHED = 'F';
+
+    // Records of finished jobs kept before the journal is compacted.
+    private static final int COMPACT_AFTER = 256;
+
+    private final Path file;
+    // Only used by the writer once the journal is open.
+    private FileChannel channel;
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    // Lines waiting for the writer.
+    private final List<String> pending = new ArrayList<>();
+    private boolean writing;
+    private boolean compacting;
+    private boolean closed;
+
+    // Unfinished jobs by id, in the order they were submitted.
+    private final Map<Integer, String> live = new LinkedHashMap<>();
+    private final Set<Integer> started = new HashSet<>();
+    private int dead;
+
+    // What was left unfinished by the last run.
+    private final Map<Integer, ZRequest> restored = new LinkedHashMap<>();
+    private final Set<Integer> interrupted = new HashSet<>();
+
+    /**
+     * Open a journal, reading what the last run left unfinished.
+     *
+     * @param file
+     *            The journal file, created if it does not exist.
+     * @throws IOException
+     *             If the journal cannot be read or written.
+     */
+    public JobJournal(File file) throws IOException {
+        this.file = file.toPath();
+        Files.createDirectories(this.file.toAbsolutePath().getParent());
+        int maxId = 0;
+        if (Files.exists(this.file)) {
+            try (BufferedReader r = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    maxId = Math.max(maxId, read(line));
+                }
+            }
+        }
+        // Jobs of this run must not be confused with those of the last one.
+        ZJob.reserveIds(maxId);
+        for (Map.Entry<Integer, String> e : live.entrySet()) {
+            Optional<ZRequest> request = ZRequest.decode(e.getValue());
+            if (request.isPresent()) {
+                restored.put(e.getKey(), request.get());
+                if (started.contains(e.getKey()))
+                    interrupted.add(e.getKey());
+            }
+        }
+        live.keySet().retainAll(restored.keySet());
+        started.retainAll(restored.keySet());
+        compact(snapshot());
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The requests of the jobs the last run did not finish, by the id
+     *         they had, in the order they were submitted.
+     */
+    public synchronized Map<Integer, ZRequest> getUnfinished() {
+        return new LinkedHashMap<>(restored);
+    }
+
+    /**
+     * @param id
+     *            The id of a job of the last run.
+     * @return Whether or not the job was running when the last run ended.
+     */
+    public synchronized boolean wasInterrupted(int id) {
+        return interrupted.contains(id);
+    }
+
+    synchronized void submitted(ZJob job) {
+        if (closed || job.getRequest() == null)
+            return;
+        String request = job.getRequest().encode();
+        append(SUBMITTED + " " + job.getId() + " " + request);
+        live.put(job.getId(), request);
+    }
+
+    synchronized void started(ZJob job) {
+        if (closed || !live.containsKey(job.getId()))
+            return;
+        append(STARTED + " " + job.getId());
+        started.add(job.getId());
+    }
+
+    synchronized void finished(int id) {
+        restored.remove(id);
+        if (closed || !live.containsKey(id))
+            return;
+        append(FINISHED + " " + id);
+        live.remove(id);
+        started.remove(id);
+        if (++dead >= COMPACT_AFTER && dead > live.size()) {
+            // The lines of the compacted journal hold every pending record.
+            compacting = true;
+            pending.clear();
+            dead = 0;
+        }
+    }
+
+    /**
+     * Stop recording, waiting for the records made so far to be written.
+     * Whatever is unfinished at this point is restored by the next run.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            boolean interrupted = false;
+            while (writing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        writer.shutdown();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Every record has been synced already.
+        }
+    }
+
+    /**
+     * Apply a line of the journal.
+     *
+     * @return The id of the job the line is about, or zero if it is invalid.
+     */
+    private int read(String line) {
+        int sp = line.indexOf(' ');
+        if (sp < 0)
+            return 0;
+        String record = line.substring(sp + 1);
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(0, sp)) || record.length() < 3)
+            return 0;
+        int end = record.indexOf(' ', 2);
+        int id;
+        try {
+            id = Integer.parseInt(end < 0 ? record.substring(2) : record.substring(2, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        switch (record.charAt(0)) {
+        case SUBMITTED:
+            if (end >= 0)
+                live.put(id, record.substring(end + 1));
+            break;
+        case STARTED:
+            started.add(id);
+            break;
+        case FINISHED:
+            live.remove(id);
+            started.remove(id);
+            break;
+        default:
+            return 0;
+        }
+        return id;
+    }
+
+    private static String line(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue()) + " " + record + "\n";
+    }
+
+    /**
+     * Queue a record for the writer, starting it if it is idle.
+     */
+    private void append(String record) {
+        pending.add(line(record));
+        if (!writing) {
+            writing = true;
+            writer.execute(this::write);
+        }
+    }
+
+    /**
+     * Write and sync the pending lines until there are none left. Runs on the
+     * writer only, so the disk is never waited on while the journal is locked.
+     */
+    private void write() {
+        while (true) {
+            List<String> lines;
+            boolean compact;
+            synchronized (this) {
+                compact = compacting;
+                lines = compact ? snapshot() : new ArrayList<>(pending);
+                if (!compact && lines.isEmpty()) {
+                    writing = false;
+                    notifyAll();
+                    return;
+                }
+                compacting = false;
+                pending.clear();
+            }
+            try {
+                if (compact) {
+                    compact(lines);
+                } else {
+                    ByteBuffer buf = ByteBuffer.wrap(String.join("", lines).getBytes(StandardCharsets.UTF_8));
+                    while (buf.hasRemaining())
+                        channel.write(buf);
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                MessageManager.inst().severe("Could not write to the task journal, tasks may not be restored after a restart.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The lines of a journal holding only the records of unfinished jobs.
+     */
+    private List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Integer, String> e : live.entrySet()) {
+            lines.add(line(SUBMITTED + " " + e.getKey() + " " + e.getValue()));
+            if (started.contains(e.getKey()))
+                lines.add(line(STARTED + " " + e.getKey()));
+        }
+        return lines;
+    }
+
+    /**
+     * Rewrite the journal with the given lines.
+     */
+    private void compact(List<String> lines) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(String.join("", lines).getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining())
+                out.write(buf);
+            out.force(true);
+        }
+        if (channel != null)
+            channel.close();
+        try {
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Keep appending to whichever journal is in place.
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import com.dscalzi.zipextractor.core.util.ILoadSignal;
+
+/**
+ * Backs the {@link ZServicer} off while the server is under load. Every second
+ * the governor samples the tick time reported by the platform and compares it
+ * to two thresholds.
+ *
+ * Past the first, the servicer slows down: its pool shrinks to a single thread.
+ * Past the second, it pauses: background and scheduled tasks wait at their
+ * next checkpoint and no more of them are started, while interactive tasks
+ * still run. The governor backs off as soon as a threshold is crossed, but
+ * only eases off one level at a time once the server has stayed below it for
+ * several seconds, so a server hovering near a threshold does not have its
+ * tasks stopped and started over and over.
+ */
+public class LoadGovernor {
+
+    public static final long INTERVAL = 1000;
+
+    // Intervals the load must stay lower before the governor eases off.
+    private static final int CALM = 5;
+
+    public enum Level {
+
+        NORMAL, SLOW, PAUSED;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+
+    }
+
+    private final ZServicer servicer;
+    private final ILoadSignal signal;
+    private final double slowTickTime;
+    private final double pauseTickTime;
+
+    private volatile double tickTime = -1;
+    private volatile Level level = Level.NORMAL;
+    private int calm;
+
+    LoadGovernor(ZServicer servicer, ILoadSignal signal, double slowTickTime, double pauseTickTime) {
+        this.servicer = servicer;
+        this.signal = signal;
+        this.slowTickTime = slowTickTime;
+        this.pauseTickTime = pauseTickTime;
+    }
+
+    /**
+     * @return The tick time last sampled, in milliseconds, or a negative
+     *         number if it is not known.
+     */
+    public double getTickTime() {
+        return tickTime;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The tick time past which tasks are run one at a time, or zero if
+     *         they never are.
+     */
+    public double getSlowTickTime() {
+        return slowTickTime;
+    }
+
+    /**
+     * @return The tick time past which background tasks are held back, or zero
+     *         if they never are.
+     */
+    public double getPauseTickTime() {
+        return pauseTickTime;
+    }
+
+    synchronized void tick() {
+        double t;
+        try {
+            t = signal.getTickTime();
+        } catch (RuntimeException e) {
+            t = -1;
+        }
+        tickTime = t;
+        Level target = Level.NORMAL;
+        if (t >= 0 && pauseTickTime > 0 && t >= pauseTickTime)
+            target = Level.PAUSED;
+        else if (t >= 0 && slowTickTime > 0 && t >= slowTickTime)
+            target = Level.SLOW;
+
+        Level next = level;
+        if (target.ordinal() > level.ordinal()) {
+            next = target;
+            calm = 0;
+        } else if (target.ordinal() < level.ordinal()) {
+            if (++calm >= CALM) {
+                next = Level.values()[level.ordinal() - 1];
+                calm = 0;
+            }
+        } else {
+            calm = 0;
+        }
+        if (next != level) {
+            level = next;
+            servicer.setLoadLevel(this, next);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the number of tasks the {@link ZServicer} runs at once. Every few
+ * seconds the tuner measures the bytes processed by all tasks and the share of
+ * their time the running tasks spent on the CPU rather than waiting on I/O.
+ *
+ * While tasks are waiting, the pool grows by one thread as long as the running
+ * tasks leave CPU time unused, or there are fewer threads than cores. A step
+ * which lowers the throughput, such as a spinning disk starting to seek
+ * between files, is undone and growth is held off for a while. Once the
+ * running tasks keep every core busy, the pool stops growing, and it shrinks
+ * back if it holds more threads than there are cores.
+ */
+public class PoolTuner {
+
+    public static final long INTERVAL = 5000;
+
+    // A task using less of the CPU than this is mostly waiting on I/O.
+    private static final double IO_BOUND = 0.7;
+    // Running tasks using this share of all cores leave none to spare.
+    private static final double SATURATED = 0.9;
+    // Changes in throughput smaller than this are noise.
+    private static final double TOLERANCE = 0.1;
+    // Intervals to wait before growing again after a step was undone.
+    private static final int HOLD = 6;
+
+    private final ZServicer servicer;
+    private final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    private final int cores = Runtime.getRuntime().availableProcessors();
+
+    private long lastTime;
+    private long lastBytes;
+    private Map<Integer, Long> lastCpu = new HashMap<>();
+
+    private int direction;
+    private int hold;
+
+    private volatile double throughput;
+    private volatile double cpuShare;
+
+    PoolTuner(ZServicer servicer) {
+        this.servicer = servicer;
+        this.lastTime = System.nanoTime();
+        this.lastBytes = servicer.getProcessedBytes();
+    }
+
+    /**
+     * @return The bytes processed per second during the last interval.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return The share of time the running tasks spent on the CPU during the
+     *         last interval, from 0 to 1.
+     */
+    public double getCpuShare() {
+        return cpuShare;
+    }
+
+    synchronized void tick() {
+        final long now = System.nanoTime();
+        final long bytes = servicer.getProcessedBytes();
+        final double elapsed = (now - lastTime) / 1e9;
+        if (elapsed <= 0)
+            return;
+        final double previous = throughput;
+        throughput = (bytes - lastBytes) / elapsed;
+        lastTime = now;
+        lastBytes = bytes;
+
+        final List<ZJob> running = servicer.getRunningJobs();
+        Map<Integer, Long> cpu = new HashMap<>();
+        long used = 0;
+        int sampled = 0;
+        for (ZJob job : running) {
+            long t = job.getThreadId() < 0 || !mx.isThreadCpuTimeSupported() ? -1 : mx.getThreadCpuTime(job.getThreadId());
+            if (t < 0)
+                continue;
+            cpu.put(job.getId(), t);
+            // A task seen for the first time has no baseline yet.
+            Long last = lastCpu.get(job.getId());
+            if (last != null) {
+                used += t - last;
+                sampled++;
+            }
+        }
+        lastCpu = cpu;
+        cpuShare = sampled == 0 ? 0 : Math.min(1, used / (elapsed * 1e9 * sampled));
+        // Tasks sharing too few cores each look like they are waiting.
+        final boolean saturated = used / (elapsed * 1e9) >= cores * SATURATED;
+
+        final int size = servicer.getPoolSize();
+        final int max = servicer.getMaximumPoolSize();
+        final boolean waiting = servicer.getQueued() > 0;
+        if (hold > 0)
+            hold--;
+
+        int next = size;
+        if (running.isEmpty() && !waiting) {
+            direction = 0;
+        } else if (direction > 0 && previous > 0 && throughput < previous * (1 - TOLERANCE)) {
+            // The last step made things worse.
+            next = size - 1;
+            direction = 0;
+            hold = HOLD;
+        } else if (saturated && size > cores) {
+            next = size - 1;
+            direction = 0;
+        } else if (waiting && hold == 0 && size < max && !saturated && (cpuShare < IO_BOUND || size < cores)) {
+            next = size + 1;
+            direction = 1;
+        } else {
+            direction = 0;
+        }
+        next = Math.max(1, Math.min(max, next));
+        if (next != size)
+            servicer.setPoolSize(next);
+    }
+
+}
@@ -19,24 +19,43 @@
 package com.dscalzi.zipextractor.core;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
 
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.provider.TypeProvider;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.MemoryBudget;
 import com.dscalzi.zipextractor.core.util.OpTuple;
 
 public class ZCompressor {
 
     private static List<String> SUPPORTED;
 
+    /**
+     * @deprecated Use {@link #asyncCompress(ICommandSender, ZRequest)}.
+     */
+    @Deprecated
     public static void asyncCompress(ICommandSender sender, File src, File dest, boolean log, final boolean override) {
+        asyncCompress(sender, ZRequest.compression(src, dest).log(log).override(override).build());
+    }
+
+    public static void asyncCompress(ICommandSender sender, ZRequest request) {
         final MessageManager mm = MessageManager.inst();
+        final File src = request.getSrc();
+        final File dest = request.getDest();
+        final boolean log = request.isLogged();
+        final boolean override = request.isOverride();
+        final boolean stream = request.isStreamed();
+        final ZPriority priority = request.getPriority();
         // If the source does not exist, abort.
         if (!src.exists()) {
             mm.sourceNotFound(sender, src.getAbsolutePath());
@@ -104,10 +123,30 @@ public class ZCompressor {
             dest.getParentFile().mkdirs();
         }
         
-        Runnable task;
+        // Intermediate files of a streamed chain never reach the disk.
+        final boolean streamed = stream && ZPipeline.canStreamCompression(new ArrayList<>(pDeque));
+        final long memory = MemoryBudget.estimate(new ArrayList<>(pDeque), ZTask.COMPRESS, streamed);
+        final String key = OpTuple.keyOf(ZTask.COMPRESS, pDeque, override, stream);
+
+        BooleanSupplier task;
         int c = 0;
         boolean piped = false;
-        final BooleanSupplier[] pipes = new BooleanSupplier[pDeque.size()];
+        final BooleanSupplier[] pipes = new BooleanSupplier[streamed ? 1 : pDeque.size()];
+        if(streamed) {
+            if (dest.exists() && !override) {
+                mm.destExists(sender);
+                return;
+            }
+            final List<OpTuple> ops = new ArrayList<>(pDeque);
+            pipes[0] = () -> {
+                expect(src, 1);
+                boolean res = ZPipeline.compress(sender, ops, log);
+                if(res)
+                    mm.compressionComplete(sender, dest);
+                return res;
+            };
+            pDeque.clear();
+        }
         for (final OpTuple e : pDeque) {
             final boolean interOp = c != pDeque.size()-1;
             
@@ -124,7 +163,11 @@ public class ZCompressor {
                     return res;
                 };
             } else {
-                pipes[c] = () -> e.getProvider().compress(sender, e.getSrc(), e.getDest(), log, interOp);
+                final int stages = pDeque.size();
+                pipes[c] = () -> {
+                    expect(e.getSrc(), stages);
+                    return e.getProvider().compress(sender, e.getSrc(), e.getDest(), log, interOp);
+                };
             }
             piped = true;
             c++;
@@ -133,18 +176,58 @@ public class ZCompressor {
         task = () -> {
             for(BooleanSupplier r : pipes) {
                 if(!r.getAsBoolean()) {
-                    break;
+                    return false;
                 }
             }
+            return true;
         };
 
-        int result = ZServicer.getInstance().submit(task);
+        final MemoryBudget budget = ZServicer.getInstance().getMemoryBudget();
+        if (!budget.fits(memory)) {
+            mm.memoryBudgetExceeded(sender, ZTask.COMPRESS, memory, budget.getLimit());
+            return;
+        }
+
+        final ZJob job = new ZJob(sender.getName(), ZTask.COMPRESS, src.getName(), priority, dest);
+        job.setKey(key);
+        job.setRequest(request);
+        int result = ZServicer.getInstance().submit(sender, job, memory, task);
         if (result == 0)
-            mm.addToQueue(sender, ZServicer.getInstance().getSize());
+            mm.addToQueue(sender, ZServicer.getInstance().getPosition(job), job.getId());
+        else if (result == 4)
+            mm.attachedToTask(sender, job.getDuplicateOf());
         else if (result == 1)
             mm.queueFull(sender, ZServicer.getInstance().getMaxQueueSize());
         else if (result == 2)
             mm.executorTerminated(sender, ZTask.COMPRESS);
+        else if (result == 3)
+            mm.senderQueueFull(sender, ZServicer.getInstance().getMaxQueuedPerSender());
+    }
+
+    /**
+     * Tell the servicer how much the task will read, so that its progress can be
+     * shown. Later stages read what the earlier ones wrote, which is taken to be
+     * about as large as the source. Files which cannot be read are left out.
+     */
+    private static void expect(File src, int stages) {
+        if (!src.isDirectory()) {
+            ZServicer.expect(src.length() * stages, 0, 0);
+            return;
+        }
+        long size = 0;
+        long files = 0;
+        try (Stream<Path> pathWalk = Files.walk(src.toPath())) {
+            for (Path path : (Iterable<Path>) pathWalk::iterator) {
+                File f = path.toFile();
+                if (f.isFile()) {
+                    size += f.length();
+                    files++;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Show what could be counted.
+        }
+        ZServicer.expect(size * stages, 0, files);
     }
 
     private static TypeProvider getApplicableProvider(File src, File dest, MessageManager mm, ICommandSender sender) {
@@ -19,21 +19,39 @@
 package com.dscalzi.zipextractor.core;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.provider.TypeProvider;
+import com.dscalzi.zipextractor.core.util.ExtractionCheckpoint;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.MemoryBudget;
 import com.dscalzi.zipextractor.core.util.OpTuple;
 import com.dscalzi.zipextractor.core.util.PageList;
+import com.dscalzi.zipextractor.core.util.StagingArea;
 
 public class ZExtractor {
 
@@ -41,8 +59,25 @@ public class ZExtractor {
     private static List<String> SUPPORTED;
     private static List<String> PIPED_RISKS;
 
+    /**
+     * @deprecated Use {@link #asyncExtract(ICommandSender, ZRequest)}.
+     */
+    @Deprecated
     public static void asyncExtract(ICommandSender sender, File src, File dest, boolean log, final boolean override, final boolean pipe, String until) {
+        asyncExtract(sender, ZRequest.extraction(src, dest).log(log).override(override).pipe(pipe, until).build());
+    }
+
+    public static void asyncExtract(ICommandSender sender, ZRequest request) {
         final MessageManager mm = MessageManager.inst();
+        final File src = request.getSrc();
+        final File dest = request.getDest();
+        final boolean log = request.isLogged();
+        final boolean override = request.isOverride();
+        final boolean pipe = request.isPiped();
+        final String until = request.getUntil();
+        final boolean singlePass = request.isSinglePass();
+        final boolean stream = request.isStreamed();
+        final ZPriority priority = request.getPriority();
 
         // If the user was warned, clear it.
         WARNED.remove(sender.getName());
@@ -132,10 +167,20 @@ public class ZExtractor {
             pDeque.add(new OpTuple(src, dest, p));
         }
         
+        // Conflicts of a single pass extraction are detected when the staged
+        // files are committed, so no stage has to be scanned beforehand.
+        final boolean staged = !override && singlePass;
+
+        // Intermediate files of a streamed chain never reach the disk, so they
+        // cannot be scanned for conflicts one stage at a time.
+        final boolean streamed = stream && (override || staged) && ZPipeline.canStreamExtraction(new ArrayList<>(pDeque));
+        final long memory = MemoryBudget.estimate(new ArrayList<>(pDeque), ZTask.EXTRACT, streamed);
+        final String key = OpTuple.keyOf(ZTask.EXTRACT, pDeque, override, pipe, until, singlePass, stream);
+
         // Ensure a proper scan can be performed with this piped extraction.
         // This is only needed when the destination directory is not empty.
         // There can never be a conflict with an empty destination.
-        if(pipe && dest.list().length > 0) {
+        if(pipe && !staged && dest.list().length > 0) {
             // The first source can be fully scanned for conflicts since it is already
             // in its final state on the disk.
             boolean first = true;
@@ -151,11 +196,11 @@ public class ZExtractor {
         // Fully scan the piped chain for extraction conflicts.
         // This is so that we can detect ALL conflicts in every
         // stage of the operation, and report the full list to the user.
-        if(!override && pipe) {
+        if(!override && pipe && !staged) {
             List<String> atRisk = new ArrayList<>();
             pDeque.forEach(op -> {
                 if(op.getProvider().canDetectPipedConflicts())
-                    atRisk.addAll(op.getProvider().scanForExtractionConflicts(sender, op.getSrc(), op.getDest(), true));
+                    atRisk.addAll(scanForConflicts(sender, op, true));
             });
             if(!atRisk.isEmpty()) {
                 WARNED.put(sender.getName(), new WarnData(src, dest, new PageList<>(4, atRisk)));
@@ -167,18 +212,46 @@ public class ZExtractor {
         // Prepare the tasks.
         // We will still check for conflicts in this stage for added security.
         // If any exist, the operation will be terminated.
-        Runnable task;
+        BooleanSupplier task;
         int c = 0;
         boolean piped = false;
-        final BooleanSupplier[] pipes = new BooleanSupplier[pDeque.size()];
+        final BooleanSupplier[] pipes = new BooleanSupplier[streamed ? 1 : pDeque.size()];
+        if(streamed) {
+            final List<OpTuple> ops = new ArrayList<>(pDeque);
+            if(staged) {
+                pipes[0] = () -> {
+                    ZServicer.expect(src.length(), 0, 0);
+                    return extractStaged(sender, ops.get(0), src, dest, target -> ZPipeline.extract(sender, ops, target, log), false);
+                };
+            } else {
+                pipes[0] = () -> {
+                    ZServicer.expect(src.length(), 0, 0);
+                    boolean res = ZPipeline.extract(sender, ops, dest, log);
+                    if(res)
+                        mm.extractionComplete(sender, dest);
+                    return res;
+                };
+            }
+            pDeque.clear();
+        }
         for(final OpTuple op : pDeque) {
             final boolean interOp = c != pDeque.size()-1;
 
-            if(piped) {
+            if(staged) {
+                final boolean intermediate = piped;
+                pipes[c] = () -> {
+                    ZServicer.expect(op.getSrc().length(), 0, 0);
+                    boolean res = extractStaged(sender, op, src, dest, target -> op.getProvider().extract(sender, op.getSrc(), target, log, true), interOp);
+                    if(intermediate)
+                        op.getSrc().delete();
+                    return res;
+                };
+            } else if(piped) {
                 pipes[c] = () -> {
+                    ZServicer.expect(op.getSrc().length(), 0, 0);
                     List<String> atRisk = new ArrayList<>();
                     if (!override) {
-                        atRisk = op.getProvider().scanForExtractionConflicts(sender, op.getSrc(), op.getDest(), false);
+                        atRisk = scanForConflicts(sender, op, false);
                     }
                     if (atRisk.isEmpty()) {
                         boolean res = op.getProvider().extract(sender, op.getSrc(), op.getDest(), log, interOp);
@@ -192,9 +265,10 @@ public class ZExtractor {
                 };
             } else {
                 pipes[c] = () -> {
+                    ZServicer.expect(op.getSrc().length(), 0, 0);
                     List<String> atRisk = new ArrayList<>();
                     if (!override) {
-                        atRisk = op.getProvider().scanForExtractionConflicts(sender, op.getSrc(), op.getDest(), false);
+                        atRisk = scanForConflicts(sender, op, false);
                     }
                     if (atRisk.isEmpty()) {
                         return op.getProvider().extract(sender, op.getSrc(), op.getDest(), log, interOp);
@@ -214,18 +288,364 @@ public class ZExtractor {
             for(BooleanSupplier r : pipes) {
                 if(!r.getAsBoolean()) {
                     // Conflicts or errors
-                    break;
+                    return false;
                 }
             }
+            return true;
         };
         
-        int result = ZServicer.getInstance().submit(task);
+        final MemoryBudget budget = ZServicer.getInstance().getMemoryBudget();
+        if (!budget.fits(memory)) {
+            mm.memoryBudgetExceeded(sender, ZTask.EXTRACT, memory, budget.getLimit());
+            return;
+        }
+
+        final ZJob job = new ZJob(sender.getName(), ZTask.EXTRACT, src.getName(), priority, dest);
+        job.setKey(key);
+        job.setRequest(request);
+        int result = ZServicer.getInstance().submit(sender, job, memory, task);
         if (result == 0)
-            mm.addToQueue(sender, ZServicer.getInstance().getSize());
+            mm.addToQueue(sender, ZServicer.getInstance().getPosition(job), job.getId());
+        else if (result == 4)
+            mm.attachedToTask(sender, job.getDuplicateOf());
         else if (result == 1)
             mm.queueFull(sender, ZServicer.getInstance().getMaxQueueSize());
         else if (result == 2)
             mm.executorTerminated(sender, ZTask.EXTRACT);
+        else if (result == 3)
+            mm.senderQueueFull(sender, ZServicer.getInstance().getMaxQueuedPerSender());
+    }
+
+    /**
+     * Extract every archive of a directory which matches a glob, as a single
+     * task. Each archive is extracted to a directory of its own under the
+     * destination, named after the archive without its extension, while single
+     * compressed files are decompressed into the destination itself. Patterns
+     * holding a separator also match archives in subdirectories, whose layout
+     * is kept in the destination.
+     *
+     * The archives are planned together: the destination is listed once, and
+     * only archives whose directory already exists there are scanned for
+     * conflicts, once the task runs. Up to as many archives as the pool has
+     * threads are extracted at once, and the sender is sent a single report for
+     * the whole batch. Archives whose format is unsupported are left out and
+     * reported as failed.
+     */
+    public static void asyncExtractBatch(ICommandSender sender, ZRequest request) {
+        final MessageManager mm = MessageManager.inst();
+        final File dir = request.getSrc();
+        final String glob = request.getGlob();
+        final File dest = request.getDest();
+        final boolean log = request.isLogged();
+        final boolean override = request.isOverride();
+        final ZPriority priority = request.getPriority();
+
+        WARNED.remove(sender.getName());
+
+        if (!dir.isDirectory()) {
+            mm.sourceNotDirectory(sender, dir.getAbsolutePath());
+            return;
+        }
+        if (!dest.exists()) {
+            dest.mkdirs();
+        }
+        if (!dest.isDirectory()) {
+            mm.destNotDirectory(sender, dest.getAbsolutePath());
+            return;
+        }
+
+        final List<File> archives;
+        try {
+            archives = findArchives(dir, glob);
+        } catch (IOException | RuntimeException e) {
+            mm.invalidBatchPattern(sender, glob);
+            return;
+        }
+        if (archives.isEmpty()) {
+            mm.noArchivesMatched(sender, glob);
+            return;
+        }
+
+        final Path root = dir.toPath();
+        final String[] listed = dest.list();
+        final Set<String> existing = listed == null ? new HashSet<>() : new HashSet<>(Arrays.asList(listed));
+        final Set<String> targets = new HashSet<>();
+        final List<OpTuple> ops = new ArrayList<>();
+        final List<OpTuple> scan = new ArrayList<>();
+        final List<String> skipped = new ArrayList<>();
+        final Set<String> unsupported = new LinkedHashSet<>();
+        for (File src : archives) {
+            TypeProvider p = getApplicableProvider(src);
+            if (!p.isSupported()) {
+                skipped.add(src.getName());
+                unsupported.add(p.getUnsupportedMessage());
+                continue;
+            }
+            Path rel = root.relativize(src.toPath());
+            File target;
+            if (p.isFilter()) {
+                target = rel.getParent() == null ? dest : new File(dest, rel.getParent().toString());
+            } else {
+                String name = src.getName();
+                int dot = name.lastIndexOf('.');
+                target = new File(dest, (rel.getParent() == null ? "" : rel.getParent() + File.separator) + (dot > 0 ? name.substring(0, dot) : name));
+                // Archives differing only by their extension keep it.
+                if (!targets.add(target.getPath())) {
+                    target = new File(target.getParentFile(), name);
+                    targets.add(target.getPath());
+                }
+            }
+            OpTuple op = new OpTuple(src, target, p);
+            ops.add(op);
+            // Nothing can conflict with a directory which does not exist yet.
+            String top = rel.getNameCount() > 1 ? rel.getName(0).toString() : target.getName();
+            if (!override && (existing.contains(top) || p.isFilter() && rel.getNameCount() == 1))
+                scan.add(op);
+        }
+        for (String message : unsupported)
+            mm.providerUnsupported(sender, message);
+        if (ops.isEmpty())
+            return;
+
+        // Reserve enough for the largest archives which may run together.
+        final int concurrency = Math.max(1, Math.min(ops.size(), ZServicer.getInstance().getPoolSize()));
+        final List<Long> usage = new ArrayList<>();
+        for (OpTuple op : ops)
+            usage.add(MemoryBudget.estimate(Collections.singletonList(op), ZTask.EXTRACT, false));
+        usage.sort(Collections.reverseOrder());
+        long memory = 0;
+        for (int i = 0; i < concurrency; i++)
+            memory += usage.get(i);
+
+        final MemoryBudget budget = ZServicer.getInstance().getMemoryBudget();
+        if (!budget.fits(memory)) {
+            mm.memoryBudgetExceeded(sender, ZTask.EXTRACT, memory, budget.getLimit());
+            return;
+        }
+
+        final ZJob job = new ZJob(sender.getName(), ZTask.EXTRACT, dir.getName() + File.separator + glob, priority, dest);
+        job.setKey(OpTuple.keyOf(ZTask.EXTRACT, ops, override, "batch"));
+        job.setRequest(request);
+        int result = ZServicer.getInstance().submit(sender, job, memory, () -> extractBatch(sender, dir, dest, ops, scan, skipped, log, concurrency));
+        if (result == 0)
+            mm.addToQueue(sender, ZServicer.getInstance().getPosition(job), job.getId());
+        else if (result == 4)
+            mm.attachedToTask(sender, job.getDuplicateOf());
+        else if (result == 1)
+            mm.queueFull(sender, ZServicer.getInstance().getMaxQueueSize());
+        else if (result == 2)
+            mm.executorTerminated(sender, ZTask.EXTRACT);
+        else if (result == 3)
+            mm.senderQueueFull(sender, ZServicer.getInstance().getMaxQueuedPerSender());
+    }
+
+    /**
+     * Find the archives of a directory which match a glob, in order of their
+     * paths. Patterns holding a separator are matched against paths relative
+     * to the directory, others against file names in the directory itself.
+     */
+    private static List<File> findArchives(File dir, String glob) throws IOException {
+        final Path root = dir.toPath();
+        final boolean deep = glob.indexOf('/') >= 0 || glob.indexOf(File.separatorChar) >= 0;
+        final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + glob);
+        try (Stream<Path> paths = deep ? Files.walk(root) : Files.list(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(deep ? root.relativize(p) : p.getFileName()))
+                    .map(Path::toFile)
+                    .filter(f -> getApplicableProvider(f) != null)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Run the archives of a batch, several at a time, once those which may
+     * conflict have been scanned. Each archive reports to the console only, the
+     * sender is sent a single report once all are done.
+     */
+    private static boolean extractBatch(ICommandSender sender, File dir, File dest, List<OpTuple> ops, List<OpTuple> scan,
+            List<String> skipped, boolean log, int concurrency) {
+        final MessageManager mm = MessageManager.inst();
+        final List<String> atRisk = new ArrayList<>();
+        try {
+            for (OpTuple op : scan) {
+                ZServicer.checkpoint();
+                for (String s : scanForConflicts(sender, op, true))
+                    atRisk.add(op.getProvider().isFilter() ? s : dest.toPath().relativize(op.getDest().toPath()) + File.separator + s);
+            }
+        } catch (TaskInterruptedException e) {
+            mm.taskInterruption(sender, ZTask.EXTRACT);
+            return false;
+        }
+        if (!atRisk.isEmpty()) {
+            WARNED.put(sender.getName(), new WarnData(dir, dest, new PageList<>(4, atRisk)));
+            mm.warnOfConflicts(sender, atRisk.size());
+            return false;
+        }
+
+        mm.startingBatch(sender, ops.size(), dir.getName());
+        ZServicer.expect(ops.stream().mapToLong(op -> op.getSrc().length()).sum(), 0, 0);
+        final ICommandSender console = new ConsoleRelay(sender);
+        final AtomicInteger cursor = new AtomicInteger();
+        final boolean[] extracted = new boolean[ops.size()];
+        final Runnable worker = () -> {
+            for (int i = cursor.getAndIncrement(); i < ops.size(); i = cursor.getAndIncrement()) {
+                ZServicer.checkpoint();
+                OpTuple op = ops.get(i);
+                op.getDest().mkdirs();
+                extracted[i] = op.getProvider().extract(console, op.getSrc(), op.getDest(), log, true);
+            }
+        };
+
+        boolean interrupted = false;
+        final List<Future<Boolean>> helpers = new ArrayList<>();
+        try {
+            // Helpers are queued like any task, so they keep to the device
+            // limits and wait while the server is under load.
+            for (int i = 1; i < concurrency; i++) {
+                Future<Boolean> f = ZServicer.getInstance().submitPart(worker);
+                if (f != null)
+                    helpers.add(f);
+            }
+            worker.run();
+        } catch (TaskInterruptedException e) {
+            interrupted = true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            // Helpers which have not started are no longer needed.
+            helpers.removeIf(ZServicer.getInstance()::withdrawPart);
+            // Do not report while an archive could still be extracting.
+            for (Future<Boolean> f : helpers) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    helpers.forEach(h -> h.cancel(true));
+                    break;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof TaskInterruptedException)
+                        interrupted = true;
+                    else
+                        e.getCause().printStackTrace();
+                }
+            }
+        }
+        // The archives cut short have reported the interruption on their own.
+        try {
+            ZServicer.checkpoint();
+        } catch (TaskInterruptedException e) {
+            interrupted = true;
+        }
+
+        if (interrupted) {
+            mm.taskInterruption(sender, ZTask.EXTRACT);
+            return false;
+        }
+        int done = 0;
+        final List<String> failed = new ArrayList<>();
+        for (int i = 0; i < ops.size(); i++) {
+            if (extracted[i])
+                done++;
+            else
+                failed.add(ops.get(i).getSrc().getName());
+        }
+        failed.addAll(skipped);
+        mm.batchExtractionComplete(sender, dest, done, failed);
+        return failed.isEmpty();
+    }
+
+    /**
+     * Extracts a single operation in one pass. The extraction writes into a staging
+     * area which is then committed to the destination. Files which would override
+     * existing ones are skipped, and if there are any nothing is committed and
+     * the user is warned as if the archive had been scanned beforehand.
+     * Completion must not be reported by the extraction, it is reported once the
+     * files have been committed.
+     */
+    private static boolean extractStaged(ICommandSender sender, OpTuple op, File src, File dest, Predicate<File> extraction, boolean interOp) {
+        final MessageManager mm = MessageManager.inst();
+        StagingArea stage = null;
+        try {
+            stage = new StagingArea(op.getSrc(), op.getDest());
+            if (!extraction.test(stage.getDirectory())) {
+                return false;
+            }
+            // Files may still have appeared in the destination meanwhile.
+            List<String> atRisk = stage.commit();
+            if (!atRisk.isEmpty()) {
+                WARNED.put(sender.getName(), new WarnData(src, dest, new PageList<>(4, atRisk)));
+                mm.warnOfConflicts(sender, atRisk.size());
+                return false;
+            }
+            if(!interOp)
+                mm.extractionComplete(sender, op.getDest());
+            return true;
+        } catch (TaskInterruptedException e) {
+            mm.taskInterruption(sender, ZTask.EXTRACT);
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            mm.genericOperationError(sender, op.getSrc(), ZTask.EXTRACT);
+            return false;
+        } finally {
+            // Keep what was staged if the server is stopping, the task is resumed on restart.
+            if(stage != null && ZServicer.getInstance().isTerminated())
+                stage.keep();
+            else if(stage != null)
+                stage.discard();
+        }
+    }
+
+    /**
+     * Scan for conflicts, leaving out the files an interrupted run of the same
+     * extraction began to write. Extracting again resumes that run.
+     */
+    private static List<String> scanForConflicts(ICommandSender sender, OpTuple op, boolean silent) {
+        List<String> atRisk = new ArrayList<>(op.getProvider().scanForExtractionConflicts(sender, op.getSrc(), op.getDest(), silent));
+        atRisk.removeAll(ExtractionCheckpoint.claimed(op.getSrc(), op.getDest()));
+        return atRisk;
+    }
+
+    /**
+     * Relays what is sent to a sender to the console instead, so that the
+     * archives of a batch do not each message the sender.
+     */
+    private static class ConsoleRelay implements ICommandSender {
+
+        private static final Pattern COLORS = Pattern.compile("(?i)&[0-9a-fk-or]");
+
+        private final ICommandSender sender;
+
+        private ConsoleRelay(ICommandSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void sendMessage(String msg) {
+            MessageManager.inst().info(COLORS.matcher(msg).replaceAll(""));
+        }
+
+        @Override
+        public boolean isConsole() {
+            return true;
+        }
+
+        @Override
+        public boolean isCommandBlock() {
+            return false;
+        }
+
+        @Override
+        public boolean hasPermission(String perm) {
+            return sender.hasPermission(perm);
+        }
+
+        @Override
+        public String getName() {
+            return sender.getName();
+        }
+
     }
 
     private static TypeProvider getApplicableProvider(File src) {
@@ -0,0 +1,503 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.TokenBucket;
+
+/**
+ * A task submitted to the {@link ZServicer}, as it is listed by the task
+ * commands. Jobs are numbered in the order they are created, and are kept in
+ * the servicer's registry until a while after they finish.
+ * 
+ * A running job can be paused. Its threads stop at the next
+ * {@link ZServicer#checkpoint() checkpoint}, between two entries, and wait there
+ * until the job is resumed, keeping everything they have done so far.
+ * 
+ * Jobs may have a key describing the work they do. A request for the same work
+ * while a job with its key is queued or running is attached to that job rather
+ * than run again, and its sender is told once the job finishes.
+ */
+public class ZJob {
+
+    public enum State {
+
+        QUEUED, RUNNING, PAUSED, DONE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+
+    }
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final int id;
+    private final String owner;
+    private final ZTask type;
+    private final String name;
+    private final ZPriority priority;
+    private final File destination;
+    // The store the job writes to, see DeviceLimits.
+    private volatile String device;
+    private volatile String key;
+    // How to request the job again, see JobJournal.
+    private volatile ZRequest request;
+    // The job this one was attached to, if it was a duplicate.
+    private volatile ZJob duplicateOf;
+    // Senders whose requests were attached to this job.
+    private final List<ICommandSender> attached = new ArrayList<>();
+
+    private volatile State state = State.QUEUED;
+    private final long submitted = System.currentTimeMillis();
+    private volatile long started;
+    private volatile long finished;
+
+    private volatile Future<?> future;
+    // The executor thread running the job, or -1.
+    private volatile long threadId = -1;
+    private final LongAdder bytes = new LongAdder();
+    // Progress, counted by the threads of the job without locking, see
+    // ZServicer#throttleRead, #throttleWrite and #entryDone. The expected
+    // totals add up over the stages of the job, zero if unknown.
+    private final LongAdder read = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder expectedInput = new LongAdder();
+    private final LongAdder expectedOutput = new LongAdder();
+    private final LongAdder expectedEntries = new LongAdder();
+    // Time spent paused or held so far, and when the job last stopped, see park.
+    private volatile long parkedFor;
+    private long parkedSince;
+    // The job's own I/O limits, see ZServicer#setThrottle.
+    private final TokenBucket readThrottle = new TokenBucket(0);
+    private final TokenBucket writeThrottle = new TokenBucket(0);
+
+    private volatile boolean pauseRequested;
+    // Set while background work is held back by server load, see LoadGovernor.
+    private volatile boolean held;
+    // Threads of this job waiting at a checkpoint.
+    private int parked;
+
+    /**
+     * @param owner
+     *            The name of the sender the job runs on behalf of.
+     * @param type
+     *            The type of the job, or null if it is not an extraction or
+     *            compression.
+     * @param name
+     *            The name of the file the job processes.
+     * @param priority
+     *            The priority of the job.
+     */
+    public ZJob(String owner, ZTask type, String name, ZPriority priority) {
+        this(owner, type, name, priority, null);
+    }
+
+    /**
+     * @param owner
+     *            The name of the sender the job runs on behalf of.
+     * @param type
+     *            The type of the job, or null if it is not an extraction or
+     *            compression.
+     * @param name
+     *            The name of the file the job processes.
+     * @param priority
+     *            The priority of the job.
+     * @param destination
+     *            The file or directory the job writes to, or null if unknown.
+     */
+    public ZJob(String owner, ZTask type, String name, ZPriority priority, File destination) {
+        this.id = IDS.incrementAndGet();
+        this.owner = owner;
+        this.type = type;
+        this.name = name;
+        this.priority = priority;
+        this.destination = destination;
+    }
+
+    /**
+     * Make sure the ids of new jobs are greater than the given id.
+     */
+    static void reserveIds(int id) {
+        IDS.accumulateAndGet(id, Math::max);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public ZTask getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ZPriority getPriority() {
+        return priority;
+    }
+
+    public File getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return The store the job writes to, or null if it is not known.
+     */
+    public String getDevice() {
+        return device;
+    }
+
+    void setDevice(String device) {
+        this.device = device;
+    }
+
+    /**
+     * @return The key of the work the job does, or null if it is never
+     *         deduplicated.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @param key
+     *            The key of the work the job does, see
+     *            {@link com.dscalzi.zipextractor.core.util.OpTuple#keyOf}.
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The request the job was made for, or null if it cannot be
+     *         requested again after a restart.
+     */
+    public ZRequest getRequest() {
+        return request;
+    }
+
+    public void setRequest(ZRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * @return The identical job this job was attached to instead of being
+     *         queued, or null.
+     */
+    public ZJob getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    void setDuplicateOf(ZJob duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+
+    /**
+     * @return The senders whose requests were attached to this job.
+     */
+    public synchronized List<ICommandSender> getAttached() {
+        return new ArrayList<>(attached);
+    }
+
+    synchronized boolean attach(ICommandSender sender) {
+        if (state.isFinished())
+            return false;
+        attached.add(sender);
+        return true;
+    }
+
+    synchronized List<ICommandSender> takeAttached() {
+        List<ICommandSender> ret = new ArrayList<>(attached);
+        attached.clear();
+        return ret;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return When the job started running, or zero if it has not.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return When the job finished, or zero if it has not.
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The number of bytes the job has read or written so far.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The number of bytes the job has read from disk so far, for an
+     *         extraction the compressed bytes.
+     */
+    public long getBytesRead() {
+        return read.sum();
+    }
+
+    /**
+     * @return The number of bytes the job has written to disk so far, for an
+     *         extraction the uncompressed bytes.
+     */
+    public long getBytesWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of entries the job has finished so far.
+     */
+    public long getEntriesDone() {
+        return entries.sum();
+    }
+
+    /**
+     * @return The number of entries the job will process, or zero if it is not
+     *         known.
+     */
+    public long getExpectedEntries() {
+        return expectedEntries.sum();
+    }
+
+    /**
+     * Estimate how far along the job is, from the bytes read of the input it
+     * is known to have, or else the bytes written of its known output, or else
+     * its entries. Some formats are not read through the servicer, so a measure
+     * is only used once the job has made progress by it.
+     * 
+     * @return The share of the job done, from 0 to 1, or -1 if it is not known.
+     */
+    public double getProgress() {
+        if (state.isFinished())
+            return state == State.DONE ? 1 : -1;
+        long[][] measures = { { read.sum(), expectedInput.sum() }, { written.sum(), expectedOutput.sum() },
+                { entries.sum(), expectedEntries.sum() } };
+        double progress = -1;
+        for (long[] m : measures) {
+            if (m[1] <= 0)
+                continue;
+            if (m[0] > 0)
+                return Math.min(1, (double) m[0] / m[1]);
+            progress = 0;
+        }
+        return progress;
+    }
+
+    /**
+     * @return How long the job has been running for in milliseconds, leaving
+     *         out the time it spent paused or held.
+     */
+    public long getRunningTime() {
+        long start = started;
+        if (start == 0)
+            return 0;
+        long end = finished > 0 ? finished : System.currentTimeMillis();
+        long since;
+        synchronized (this) {
+            since = parked > 0 ? parkedSince : 0;
+        }
+        return Math.max(0, (since > 0 ? since : end) - start - parkedFor);
+    }
+
+    /**
+     * @return The bytes the job has read or written per second of its running
+     *         time.
+     */
+    public double getThroughput() {
+        long time = getRunningTime();
+        return time <= 0 ? 0 : getBytes() * 1000d / time;
+    }
+
+    /**
+     * @return The estimated time until the job finishes in milliseconds, or -1
+     *         if it cannot be estimated.
+     */
+    public long getEta() {
+        double progress = getProgress();
+        long time = getRunningTime();
+        if (progress <= 0 || time <= 0)
+            return -1;
+        return (long) (time * (1 - progress) / progress);
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    void addBytes(long n) {
+        bytes.add(n);
+    }
+
+    void addRead(long n) {
+        read.add(n);
+    }
+
+    void addWritten(long n) {
+        written.add(n);
+    }
+
+    void entryDone() {
+        entries.increment();
+    }
+
+    void expect(long input, long output, long entries) {
+        expectedInput.add(input);
+        expectedOutput.add(output);
+        expectedEntries.add(entries);
+    }
+
+    TokenBucket getReadThrottle() {
+        return readThrottle;
+    }
+
+    TokenBucket getWriteThrottle() {
+        return writeThrottle;
+    }
+
+    public boolean isPauseRequested() {
+        return pauseRequested;
+    }
+
+    /**
+     * @return Whether or not the job is held back at its checkpoints because
+     *         the server is under load.
+     */
+    public boolean isHeld() {
+        return held;
+    }
+
+    synchronized void setHeld(boolean held) {
+        this.held = held;
+        notifyAll();
+    }
+
+    public String getDescription() {
+        return (type == null ? "task" : type.getProcessName()) + " of '" + name + "'";
+    }
+
+    Future<?> getFuture() {
+        return future;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    synchronized void started() {
+        threadId = Thread.currentThread().getId();
+        started = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    synchronized void finished(State state) {
+        threadId = -1;
+        finished = System.currentTimeMillis();
+        this.state = state;
+    }
+
+    synchronized boolean requestPause() {
+        if (state != State.RUNNING || pauseRequested)
+            return false;
+        pauseRequested = true;
+        // A held job is already waiting.
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean requestResume() {
+        if (!pauseRequested)
+            return false;
+        pauseRequested = false;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait while the job is paused or held. The first thread to stop lends the
+     * job's worker thread to the servicer, the last one to leave takes it back.
+     * Only a job paused by request is shown as paused.
+     *
+     * Lending and reclaiming lock the servicer, which calls into jobs while it
+     * holds its own lock, so both run outside of the job's lock. The servicer
+     * only counts the threads lent, the order of the calls does not matter.
+     */
+    void park(Runnable lend, Runnable reclaim) throws InterruptedException {
+        boolean first;
+        synchronized (this) {
+            if (!pauseRequested && !held)
+                return;
+            first = parked++ == 0;
+            if (first)
+                parkedSince = System.currentTimeMillis();
+        }
+        boolean last = false;
+        try {
+            if (first)
+                lend.run();
+            synchronized (this) {
+                while (pauseRequested || held) {
+                    if (pauseRequested && state == State.RUNNING)
+                        state = State.PAUSED;
+                    else if (!pauseRequested && state == State.PAUSED)
+                        state = State.RUNNING;
+                    wait();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (--parked == 0) {
+                    parkedFor += System.currentTimeMillis() - parkedSince;
+                    if (state == State.PAUSED)
+                        state = State.RUNNING;
+                    last = true;
+                }
+            }
+            if (last)
+                reclaim.run();
+        }
+    }
+
+}
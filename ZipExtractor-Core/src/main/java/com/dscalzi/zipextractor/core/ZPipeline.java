@@ -0,0 +1,276 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipException;
+
+import org.tukaani.xz.XZFormatException;
+
+import com.dscalzi.zipextractor.core.managers.MessageManager;
+import com.dscalzi.zipextractor.core.provider.TypeProvider;
+import com.dscalzi.zipextractor.core.util.BoundedPipe;
+import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.OpTuple;
+
+/**
+ * Runs a piped operation without writing its intermediate files to the disk.
+ * Each stage runs on its own thread and hands its output to the next stage
+ * through a {@link BoundedPipe}, so at most {@link #PIPE_CAPACITY} bytes are
+ * held between any two stages.
+ */
+public class ZPipeline {
+
+    public static final int PIPE_CAPACITY = 1 << 20;
+
+    /**
+     * Check if the given chain of operations should be extracted as a stream.
+     * Every stage but the last must be a filter, and the last must be streamable.
+     * If the last stage can extract in parallel when given random access to its
+     * source, writing its source to the disk is preferred over streaming it.
+     *
+     * @param ops
+     *            The chain of operations, in order.
+     * @return Whether or not the chain can be streamed.
+     */
+    public static boolean canStreamExtraction(List<OpTuple> ops) {
+        if (ops.size() < 2)
+            return false;
+        for (int i = 0; i < ops.size() - 1; i++) {
+            if (!ops.get(i).getProvider().isFilter())
+                return false;
+        }
+        TypeProvider tail = ops.get(ops.size() - 1).getProvider();
+        if (tail.isRandomAccess() && tail.isParallelizable() && ZServicer.getInstance().getWorkerThreads() > 1)
+            return false;
+        return tail.isStreamable();
+    }
+
+    /**
+     * Extract a chain of operations into the destination directory. The first
+     * stage reads its source from the disk, every other stage reads the output
+     * of the one before it. Errors are relayed to the sender, completion is not.
+     *
+     * @param sender
+     *            The sender of the command, used for error relays.
+     * @param ops
+     *            The chain of operations, in order.
+     * @param dest
+     *            The destination root for extracted files.
+     * @param log
+     *            Whether or not to log the progress.
+     * @return True if successful, false otherwise.
+     */
+    public static boolean extract(ICommandSender sender, List<OpTuple> ops, File dest, boolean log) {
+        final MessageManager mm = MessageManager.inst();
+        final int last = ops.size() - 1;
+        return run(sender, ops, ZTask.EXTRACT, (i, in, out) -> {
+            final OpTuple op = ops.get(i);
+            if (i == last) {
+                op.getProvider().extract(in, op.getSrc().getName(), dest, log);
+                return;
+            }
+            if (log)
+                mm.info("Extracting : " + op.getSrc().getAbsoluteFile());
+            if (i == 0) {
+                try (FileInputStream fis = new FileInputStream(op.getSrc())) {
+                    op.getProvider().decompress(fis.getChannel(), Channels.newChannel(out));
+                }
+            } else {
+                op.getProvider().decompress(in, out);
+            }
+        });
+    }
+
+    /**
+     * Check if the given chain of operations can be compressed as a stream. The
+     * first stage must be streamable, and every other stage must be a filter.
+     *
+     * @param ops
+     *            The chain of operations, in order.
+     * @return Whether or not the chain can be streamed.
+     */
+    public static boolean canStreamCompression(List<OpTuple> ops) {
+        if (ops.size() < 2)
+            return false;
+        for (int i = 1; i < ops.size(); i++) {
+            if (!ops.get(i).getProvider().isFilter())
+                return false;
+        }
+        return ops.get(0).getProvider().isStreamable();
+    }
+
+    /**
+     * Compress a chain of operations into the destination of the last one. The
+     * first stage reads its source from the disk, every other stage compresses
+     * the output of the one before it. Errors are relayed to the sender,
+     * completion is not. If the chain fails, the partial archive is deleted.
+     *
+     * @param sender
+     *            The sender of the command, used for error relays.
+     * @param ops
+     *            The chain of operations, in order.
+     * @param log
+     *            Whether or not to log the progress.
+     * @return True if successful, false otherwise.
+     */
+    public static boolean compress(ICommandSender sender, List<OpTuple> ops, boolean log) {
+        final MessageManager mm = MessageManager.inst();
+        final int last = ops.size() - 1;
+        final File archive = ops.get(last).getDest();
+        boolean res = run(sender, ops, ZTask.COMPRESS, (i, in, out) -> {
+            final OpTuple op = ops.get(i);
+            if (i == 0) {
+                op.getProvider().compress(op.getSrc(), out, archive, log);
+                return;
+            }
+            if (log)
+                mm.info("Compressing : " + op.getSrc().getAbsolutePath());
+            if (i == last) {
+                try (OutputStream fos = IOUtil.throttled(new FileOutputStream(op.getDest()))) {
+                    op.getProvider().compress(in, fos);
+                }
+            } else {
+                op.getProvider().compress(in, out);
+            }
+        });
+        if (!res)
+            archive.delete();
+        return res;
+    }
+
+    /**
+     * Run every stage of a chain, all but the last on the stage pool. The first
+     * stage is given no input and the last is given no output.
+     */
+    private static boolean run(ICommandSender sender, List<OpTuple> ops, ZTask task, Stage body) {
+        final MessageManager mm = MessageManager.inst();
+        final int last = ops.size() - 1;
+        final List<BoundedPipe> pipes = new ArrayList<>(last);
+        for (int i = 0; i < last; i++) {
+            pipes.add(new BoundedPipe(PIPE_CAPACITY));
+        }
+        final AtomicReference<Failure> failure = new AtomicReference<>();
+
+        List<Future<?>> futures = new ArrayList<>(last);
+        try {
+            for (int i = 0; i < last; i++) {
+                final BoundedPipe out = pipes.get(i);
+                final BoundedPipe in = i > 0 ? pipes.get(i - 1) : null;
+                final int stage = i;
+                mm.startingProcess(sender, task, ops.get(i).getSrc().getName());
+                futures.add(ZServicer.getInstance().getStagePool().submit(ZServicer.withCurrentJob(() -> {
+                    try (InputStream is = in == null ? null : in.getInputStream()) {
+                        body.run(stage, is, out.getOutputStream());
+                        out.getOutputStream().close();
+                    } catch (Throwable t) {
+                        // If the next stage stopped reading, it has already reported why.
+                        if (!out.isReadClosed())
+                            fail(failure, pipes, stage, t);
+                    }
+                    return null;
+                })));
+            }
+
+            mm.startingProcess(sender, task, ops.get(last).getSrc().getName());
+            try (InputStream is = pipes.get(last - 1).getInputStream()) {
+                body.run(last, is, null);
+            }
+        } catch (RejectedExecutionException e) {
+            fail(failure, pipes, last, new TaskInterruptedException(e));
+        } catch (Throwable t) {
+            fail(failure, pipes, last, t);
+        } finally {
+            // Do not return while a stage could still be writing.
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    fail(failure, pipes, last, new TaskInterruptedException(e));
+                    futures.forEach(fu -> fu.cancel(true));
+                    break;
+                } catch (ExecutionException e) {
+                    fail(failure, pipes, last, e.getCause());
+                }
+            }
+        }
+
+        Failure f = failure.get();
+        if (f == null)
+            return true;
+
+        OpTuple op = ops.get(f.stage);
+        if (f.cause instanceof TaskInterruptedException || f.cause instanceof ClosedByInterruptException) {
+            mm.taskInterruption(sender, task);
+        } else if (f.cause instanceof AccessDeniedException) {
+            mm.fileAccessDenied(sender, task, f.cause.getMessage());
+        } else if (task == ZTask.EXTRACT && (f.cause instanceof ZipException || f.cause instanceof XZFormatException)) {
+            mm.extractionFormatError(sender, op.getSrc(), op.getProvider().supportedExtractionTypes().get(0).toUpperCase());
+        } else {
+            f.cause.printStackTrace();
+            mm.genericOperationError(sender, op.getSrc(), task);
+        }
+        return false;
+    }
+
+    /**
+     * Record the first failure of the pipeline and break every pipe, so that no
+     * stage stays blocked on another.
+     */
+    private static void fail(AtomicReference<Failure> failure, List<BoundedPipe> pipes, int stage, Throwable cause) {
+        if (failure.compareAndSet(null, new Failure(stage, cause))) {
+            pipes.forEach(p -> p.fail(cause));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+
+        void run(int stage, InputStream in, OutputStream out) throws IOException;
+
+    }
+
+    private static class Failure {
+
+        private final int stage;
+        private final Throwable cause;
+
+        private Failure(int stage, Throwable cause) {
+            this.stage = stage;
+            this.cause = cause;
+        }
+
+    }
+
+}
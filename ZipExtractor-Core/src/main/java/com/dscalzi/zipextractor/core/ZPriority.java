@@ -0,0 +1,61 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The priority of a queued task. Queued tasks are ordered by the time they were
+ * submitted plus the handicap of their priority, so a lower priority task which
+ * has waited longer than its handicap is run ahead of newly submitted higher
+ * priority tasks. This aging keeps a steady stream of interactive tasks from
+ * starving background work.
+ */
+public enum ZPriority {
+
+    INTERACTIVE(0), BACKGROUND(TimeUnit.MINUTES.toNanos(10)), SCHEDULED(TimeUnit.MINUTES.toNanos(60));
+
+    private final long handicap;
+
+    ZPriority(long handicap) {
+        this.handicap = handicap;
+    }
+
+    /**
+     * @return How long, in nanoseconds, a task of this priority waits behind a
+     *         task of the highest priority which was submitted at the same time.
+     */
+    public long getHandicap() {
+        return handicap;
+    }
+
+    public String getName() {
+        return name().toLowerCase();
+    }
+
+    public static Optional<ZPriority> fromName(String name) {
+        for (ZPriority p : values()) {
+            if (p.getName().equalsIgnoreCase(name))
+                return Optional.of(p);
+        }
+        return Optional.empty();
+    }
+
+}
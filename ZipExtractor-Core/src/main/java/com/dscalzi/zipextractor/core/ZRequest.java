@@ -0,0 +1,333 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.dscalzi.zipextractor.core.util.ICommandSender;
+
+/**
+ * An extraction or compression as it was requested, along with its options.
+ * Requests are built with {@link #extraction(File, File)},
+ * {@link #batchExtraction(File, String, File)} or
+ * {@link #compression(File, File)}, and are kept with their job so that they
+ * can be requested again after a restart, see {@link JobJournal}.
+ */
+public class ZRequest {
+
+    private final ZTask type;
+    private final File src;
+    private final File dest;
+    private final boolean log;
+    private final boolean override;
+    private final boolean pipe;
+    private final String until;
+    private final boolean singlePass;
+    private final boolean stream;
+    private final ZPriority priority;
+    // The archives of a batch extraction, see ZExtractor#asyncExtractBatch.
+    private final String glob;
+    // Requested again from the journal, see #restore.
+    private boolean restored;
+
+    private ZRequest(ZTask type, File src, File dest, boolean log, boolean override, boolean pipe, String until,
+            boolean singlePass, boolean stream, ZPriority priority, String glob) {
+        this.type = type;
+        this.src = src;
+        this.dest = dest;
+        this.log = log;
+        this.override = override;
+        this.pipe = pipe;
+        this.until = until;
+        this.singlePass = singlePass;
+        this.stream = stream;
+        this.priority = priority;
+        this.glob = glob;
+    }
+
+    /**
+     * @param src
+     *            The archive to extract.
+     * @param dest
+     *            The directory to extract to.
+     * @return A builder of the request.
+     */
+    public static Builder extraction(File src, File dest) {
+        return new Builder(ZTask.EXTRACT, src, dest, null);
+    }
+
+    /**
+     * @param dir
+     *            The directory holding the archives.
+     * @param glob
+     *            The pattern the archives must match.
+     * @param dest
+     *            The directory to extract to.
+     * @return A builder of the request.
+     */
+    public static Builder batchExtraction(File dir, String glob, File dest) {
+        return new Builder(ZTask.EXTRACT, dir, dest, glob);
+    }
+
+    /**
+     * @param src
+     *            The file or directory to compress.
+     * @param dest
+     *            The archive to create.
+     * @return A builder of the request.
+     */
+    public static Builder compression(File src, File dest) {
+        return new Builder(ZTask.COMPRESS, src, dest, null);
+    }
+
+    public ZTask getType() {
+        return type;
+    }
+
+    public File getSrc() {
+        return src;
+    }
+
+    public File getDest() {
+        return dest;
+    }
+
+    public boolean isLogged() {
+        return log;
+    }
+
+    public boolean isOverride() {
+        return override;
+    }
+
+    public boolean isPiped() {
+        return pipe;
+    }
+
+    /**
+     * @return The extension to stop piping at, or null.
+     */
+    public String getUntil() {
+        return until;
+    }
+
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    public boolean isStreamed() {
+        return stream;
+    }
+
+    public ZPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return The pattern of a batch extraction, or null if this is not one.
+     */
+    public String getGlob() {
+        return glob;
+    }
+
+    /**
+     * @return Whether or not the request was restored from the journal after a
+     *         restart. Restored requests were accepted once already, so they
+     *         are not held to the limits of the queue again.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Prepare the request to be requested again after a restart. A compression
+     * which was cut short left its partial archive behind, which it may
+     * overwrite, nothing else was there when it was accepted.
+     *
+     * @param interrupted
+     *            Whether or not the task was running when the server stopped.
+     * @return The request to submit.
+     */
+    ZRequest restore(boolean interrupted) {
+        ZRequest ret = new ZRequest(type, src, dest, log, override || (interrupted && type == ZTask.COMPRESS), pipe,
+                until, singlePass, stream, priority, glob);
+        ret.restored = true;
+        return ret;
+    }
+
+    /**
+     * Request the task again.
+     *
+     * @param sender
+     *            The command sender to request the task as.
+     */
+    public void submit(ICommandSender sender) {
+        if (type == ZTask.EXTRACT && glob != null)
+            ZExtractor.asyncExtractBatch(sender, this);
+        else if (type == ZTask.EXTRACT)
+            ZExtractor.asyncExtract(sender, this);
+        else
+            ZCompressor.asyncCompress(sender, this);
+    }
+
+    /**
+     * @return The request as a single line of text.
+     */
+    public String encode() {
+        List<String> fields = new ArrayList<>();
+        fields.add(type.name());
+        fields.add(src.getAbsolutePath());
+        fields.add(dest.getAbsolutePath());
+        fields.add(flags(log, override, pipe, singlePass, stream));
+        fields.add(until == null ? "" : "=" + until);
+        fields.add(priority.getName());
+        if (glob != null)
+            fields.add(glob);
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            if (sb.length() > 0)
+                sb.append('\t');
+            sb.append(field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param line
+     *            A request encoded by {@link #encode()}.
+     * @return The request, or nothing if the line is not a valid request.
+     */
+    public static Optional<ZRequest> decode(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char e = line.charAt(++i);
+                field.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (fields.size() < 6 || fields.size() > 7 || fields.get(3).length() != 5)
+            return Optional.empty();
+        try {
+            ZTask type = ZTask.valueOf(fields.get(0));
+            Optional<ZPriority> priority = ZPriority.fromName(fields.get(5));
+            if (type == ZTask.SCAN || !priority.isPresent())
+                return Optional.empty();
+            String f = fields.get(3);
+            String until = fields.get(4).isEmpty() ? null : fields.get(4).substring(1);
+            return Optional.of(new ZRequest(type, new File(fields.get(1)), new File(fields.get(2)), f.charAt(0) == '1',
+                    f.charAt(1) == '1', f.charAt(2) == '1', until, f.charAt(3) == '1', f.charAt(4) == '1',
+                    priority.get(), fields.size() > 6 ? fields.get(6) : null));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static String flags(boolean... flags) {
+        StringBuilder sb = new StringBuilder();
+        for (boolean f : flags)
+            sb.append(f ? '1' : '0');
+        return sb.toString();
+    }
+
+    public static class Builder {
+
+        private final ZTask type;
+        private final File src;
+        private final File dest;
+        private final String glob;
+        private boolean log;
+        private boolean override;
+        private boolean pipe;
+        private String until;
+        private boolean singlePass;
+        private boolean stream;
+        private ZPriority priority = ZPriority.INTERACTIVE;
+
+        private Builder(ZTask type, File src, File dest, String glob) {
+            this.type = type;
+            this.src = src;
+            this.dest = dest;
+            this.glob = glob;
+        }
+
+        /**
+         * Log every entry processed to the console.
+         */
+        public Builder log(boolean log) {
+            this.log = log;
+            return this;
+        }
+
+        /**
+         * Overwrite existing files rather than stopping at conflicts.
+         */
+        public Builder override(boolean override) {
+            this.override = override;
+            return this;
+        }
+
+        /**
+         * Extract nested archives as well, up to the given extension if it is
+         * not null.
+         */
+        public Builder pipe(boolean pipe, String until) {
+            this.pipe = pipe;
+            this.until = until;
+            return this;
+        }
+
+        /**
+         * Extract into a staging area rather than scanning for conflicts first.
+         */
+        public Builder singlePass(boolean singlePass) {
+            this.singlePass = singlePass;
+            return this;
+        }
+
+        /**
+         * Stream chains of formats rather than writing each stage to disk.
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        public Builder priority(ZPriority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public ZRequest build() {
+            return new ZRequest(type, src, dest, log, override, pipe, until, singlePass, stream, priority, glob);
+        }
+
+    }
+
+}
@@ -18,38 +18,140 @@
 
 package com.dscalzi.zipextractor.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
+import com.dscalzi.zipextractor.core.managers.IConfigManager;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
+import com.dscalzi.zipextractor.core.provider.XZProvider;
+import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.ILoadSignal;
+import com.dscalzi.zipextractor.core.util.TokenBucket;
+import com.dscalzi.zipextractor.core.util.MemoryBudget;
 
 public class ZServicer {
 
     private static boolean initialized;
     private static ZServicer instance;
 
+    // How long finished jobs stay listed, and how many of them at most.
+    private static final long FINISHED_RETENTION = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_FINISHED = 50;
+
+    // The job the current thread is working on, see checkpoint.
+    private static final ThreadLocal<ZJob> CURRENT = new ThreadLocal<>();
+
     private int maxQueueSize;
+    // Per sender limits, zero for none.
+    private volatile int maxQueuedPerSender;
     
     private ThreadPoolExecutor executor;
-    private ArrayBlockingQueue<Runnable> queue;
+    // The configured pool size, the size in use, and the threads lent by paused
+    // jobs on top of it. The size in use is picked by the tuner, if enabled.
+    private int maxPoolSize;
+    private int poolSize;
+    private int lent;
+    private PoolTuner tuner;
+    private ScheduledExecutorService tuning;
+
+    // Backs tasks off while the server is under load, if enabled.
+    private LoadGovernor governor;
+    private ScheduledExecutorService governing;
+    private volatile LoadGovernor.Level loadLevel = LoadGovernor.Level.NORMAL;
+
+    // Bytes read or written by all tasks, see processed.
+    private final LongAdder processed = new LongAdder();
+    // Bounded by maxQueueSize in submit.
+    private FairQueue queue;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Shared by running tasks to process the entries of an archive in parallel.
+    private ThreadPoolExecutor workers;
+
+    // Runs the stages of streamed operations, which block on each other.
+    private ThreadPoolExecutor stages;
 
-    private Collection<Future<?>> futures = new LinkedList<>();
+    // Creates and writes the files of extractions, see WriteBehind.
+    private ThreadPoolExecutor io;
+    private volatile int ioThreads = 1;
 
-    private ZServicer(int maxQueueSize, int maxPoolSize) {
+    // Memory reserved by running tasks, see MemoryBudget#estimate.
+    private MemoryBudget budget = new MemoryBudget(0);
+
+    // Tasks which may write to a single device at once.
+    private final DeviceLimits devices = new DeviceLimits();
+
+    // Limits on the bytes all tasks read and write together, and on those of
+    // each task, see throttleRead and throttleWrite.
+    private final TokenBucket readThrottle = new TokenBucket(0);
+    private final TokenBucket writeThrottle = new TokenBucket(0);
+    private volatile long taskReadLimit;
+    private volatile long taskWriteLimit;
+
+    private final Map<Integer, ZJob> jobs = new ConcurrentHashMap<>();
+
+    // Records submitted tasks so that they survive a restart, if enabled.
+    private volatile JobJournal journal;
+
+    private ZServicer(int maxQueueSize, int maxPoolSize, int workerThreads) {
         this.maxQueueSize = maxQueueSize;
-        this.queue = new ArrayBlockingQueue<>(maxQueueSize);
-        this.executor = new ThreadPoolExecutor(1, maxPoolSize, 10, TimeUnit.SECONDS, queue);
+        this.queue = new FairQueue();
+        // Every task must go through the queue to be dispatched fairly, so all
+        // threads are started up front. The executor never hands a new task to
+        // a thread directly while all of its core threads exist.
+        this.maxPoolSize = maxPoolSize;
+        this.poolSize = maxPoolSize;
+        this.executor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, 10, TimeUnit.SECONDS, queue);
+        this.executor.prestartAllCoreThreads();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.stages = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<>());
+        this.io = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.io.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * @deprecated Use {@link #initalize(int, int, int)}, this extracts and
+     *             compresses every archive on a single thread.
+     */
+    @Deprecated
     public static void initalize(int limit, int maxPoolSize) {
+        initalize(limit, maxPoolSize, 1);
+    }
+
+    public static void initalize(int limit, int maxPoolSize, int workerThreads) {
         if (!initialized) {
-            instance = new ZServicer(limit, maxPoolSize);
+            instance = new ZServicer(limit, maxPoolSize, workerThreads);
             initialized = true;
         }
     }
@@ -59,21 +161,506 @@ public class ZServicer {
     }
 
     /**
-     * Error code key: 0 = success 1 = queue full 2 = executor is shutdown
+     * Error code key: 0 = success 1 = queue full 2 = executor is shutdown 3 =
+     * the sender's share of the queue is full 4 = attached to an identical job
      * 
      * @param task
      *            A runnable task to be queued and executed.
      * @return An error code based on the key above
      */
     public int submit(Runnable task) {
+        return submit(task, ZPriority.INTERACTIVE);
+    }
+
+    /**
+     * Queue a task with the given priority, see {@link ZPriority}. Tasks which
+     * are not submitted on behalf of a sender share a single sub-queue.
+     * 
+     * @param task
+     *            A runnable task to be queued and executed.
+     * @param priority
+     *            The priority of the task.
+     * @return An error code, see {@link #submit(Runnable)}.
+     */
+    public int submit(Runnable task, ZPriority priority) {
+        return submit(new ZJob("", null, "task", priority), () -> {
+            task.run();
+            return true;
+        });
+    }
+
+    private synchronized int submit(ZJob job, BooleanSupplier task) {
+        prune();
+        if (executor.isShutdown())
+            return 2;
+        // Restored jobs were accepted before the restart, turning them away now would lose them.
+        boolean restored = job.getRequest() != null && job.getRequest().isRestored();
+        if (!restored && queue.size() >= maxQueueSize)
+            return 1;
+        if (!restored && maxQueuedPerSender > 0 && queue.sizeOf(job.getOwner()) >= maxQueuedPerSender)
+            return 3;
+        job.setDevice(devices.deviceOf(job.getDestination()));
+        job.getReadThrottle().setRate(taskReadLimit);
+        job.getWriteThrottle().setRate(taskWriteLimit);
+        QueuedTask queued = new QueuedTask(job, task, sequence.getAndIncrement(), false);
+        job.setFuture(queued);
+        jobs.put(job.getId(), job);
+        // Recorded first, the task may finish before execute returns.
+        JobJournal journal = this.journal;
+        if (journal != null)
+            journal.submitted(job);
         try {
-            futures.add(executor.submit(task));
+            executor.execute(queued);
         } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            if (journal != null)
+                journal.finished(job.getId());
             return executor.isShutdown() ? 2 : 1;
         }
         return 0;
     }
 
+    /**
+     * Queue part of the work of the job the current thread is working on, to
+     * run on a thread of the pool alongside it. Parts are dispatched like
+     * tasks of the job's sender, so they keep to the device limits and wait
+     * while the server is under load. They are not held to the queue limits,
+     * the job was accepted already.
+     * 
+     * @param part
+     *            The work, which should return once there is nothing left to
+     *            do.
+     * @return The future of the part, or null if the current thread is not
+     *         working on a job or the executor is shutdown.
+     */
+    public Future<Boolean> submitPart(Runnable part) {
+        ZJob job = CURRENT.get();
+        if (job == null || executor.isShutdown())
+            return null;
+        QueuedTask queued = new QueuedTask(job, () -> {
+            part.run();
+            return true;
+        }, sequence.getAndIncrement(), true);
+        try {
+            executor.execute(queued);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return queued;
+    }
+
+    /**
+     * Take a part out of the queue if it has not started yet, see
+     * {@link #submitPart(Runnable)}.
+     * 
+     * @param part
+     *            The future of the part.
+     * @return False if the part has started, it must be waited for.
+     */
+    public boolean withdrawPart(Future<Boolean> part) {
+        return executor.remove((Runnable) part);
+    }
+
+    /**
+     * Get the position of a job in the queue, in the order jobs will be
+     * dispatched. See {@link FairQueue} for how senders share the executor.
+     * 
+     * @param job
+     *            The job.
+     * @return The number of queued jobs which will run before it, plus one, or
+     *         zero if the job is not queued.
+     */
+    public int getPosition(ZJob job) {
+        return queue.positionOf(job);
+    }
+
+    public Optional<ZJob> getJob(int id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * @return Every queued and running job, followed by the jobs which
+     *         finished recently, in the order they were submitted.
+     */
+    public List<ZJob> getJobs() {
+        prune();
+        List<ZJob> ret = new ArrayList<>(jobs.values());
+        ret.sort(Comparator.comparingInt(ZJob::getId));
+        return ret;
+    }
+
+    /**
+     * Cancel a job. A queued job is removed from the queue, a running job is
+     * interrupted and finishes once it notices.
+     * 
+     * @param job
+     *            The job to cancel.
+     * @return False if the job had already finished.
+     */
+    public boolean cancel(ZJob job) {
+        Future<?> future = job.getFuture();
+        if (future == null || job.getState().isFinished() || !future.cancel(true))
+            return false;
+        if (executor.remove((Runnable) future))
+            finish(job, ZJob.State.CANCELLED);
+        // Threads waiting at a checkpoint must be let go to notice the interrupt.
+        job.requestResume();
+        return true;
+    }
+
+    /**
+     * Pause a running job at its next checkpoint. While it is paused, its
+     * worker thread is replaced so that other queued tasks can run.
+     * 
+     * @param job
+     *            The job to pause.
+     * @return False if the job is not running or is already paused.
+     */
+    public boolean pause(ZJob job) {
+        return job.requestPause();
+    }
+
+    /**
+     * Resume a paused job where it stopped.
+     * 
+     * @param job
+     *            The job to resume.
+     * @return False if the job is not paused.
+     */
+    public boolean resume(ZJob job) {
+        return job.requestResume();
+    }
+
+    /**
+     * Must be called by tasks between entries. Fails if the task has been
+     * interrupted or cancelled, and waits while the job being worked on is paused or
+     * held back by server load.
+     * 
+     * @throws TaskInterruptedException
+     *             If the task has been interrupted.
+     */
+    public static void checkpoint() {
+        if (Thread.interrupted())
+            throw new TaskInterruptedException();
+        ZJob job = CURRENT.get();
+        // Work handed off to other pools is not interrupted along with the task.
+        if (job != null && job.getFuture() != null && job.getFuture().isCancelled())
+            throw new TaskInterruptedException();
+        if (job != null && (job.isPauseRequested() || job.isHeld())) {
+            try {
+                job.park(instance::lendThread, instance::reclaimThread);
+            } catch (InterruptedException e) {
+                throw new TaskInterruptedException();
+            }
+            if (Thread.interrupted())
+                throw new TaskInterruptedException();
+        }
+    }
+
+    /**
+     * Bind work which a task hands off to another pool to the task's job, so
+     * that the work pauses along with it.
+     * 
+     * @param work
+     *            The work to run on another thread.
+     * @return The bound work.
+     */
+    public static <T> Callable<T> withCurrentJob(Callable<T> work) {
+        final ZJob job = CURRENT.get();
+        return () -> {
+            ZJob previous = CURRENT.get();
+            CURRENT.set(job);
+            try {
+                return work.call();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Must be called by tasks as they read or write data, so that throughput
+     * can be measured.
+     * 
+     * @param bytes
+     *            The number of bytes processed.
+     */
+    public static void processed(long bytes) {
+        ZServicer z = instance;
+        if (z != null)
+            z.processed.add(bytes);
+        ZJob job = CURRENT.get();
+        if (job != null)
+            job.addBytes(bytes);
+    }
+
+    /**
+     * Must be called by tasks as they read data from disk, waits for as long as
+     * it takes to keep to the read limits.
+     * 
+     * @param bytes
+     *            The number of bytes read.
+     * @throws TaskInterruptedException
+     *             If the task is interrupted while it waits.
+     */
+    public static void throttleRead(long bytes) {
+        ZServicer z = instance;
+        if (z != null)
+            z.readThrottle.acquire(bytes);
+        ZJob job = CURRENT.get();
+        if (job != null) {
+            job.addRead(bytes);
+            job.getReadThrottle().acquire(bytes);
+        }
+    }
+
+    /**
+     * Must be called by tasks as they write data to disk, waits for as long as
+     * it takes to keep to the write limits.
+     * 
+     * @param bytes
+     *            The number of bytes written.
+     * @throws TaskInterruptedException
+     *             If the task is interrupted while it waits.
+     */
+    public static void throttleWrite(long bytes) {
+        ZServicer z = instance;
+        if (z != null)
+            z.writeThrottle.acquire(bytes);
+        ZJob job = CURRENT.get();
+        if (job != null) {
+            job.addWritten(bytes);
+            job.getWriteThrottle().acquire(bytes);
+        }
+    }
+
+    /**
+     * Should be called by tasks once they know how much work lies ahead, so
+     * that their progress can be shown. Calls add up, a task of several stages
+     * calls it for each.
+     * 
+     * @param input
+     *            The number of bytes the task will read from disk, or zero if
+     *            it is not known.
+     * @param output
+     *            The number of bytes the task will write to disk, or zero if it
+     *            is not known.
+     * @param entries
+     *            The number of entries the task will process, or zero if it is
+     *            not known.
+     */
+    public static void expect(long input, long output, long entries) {
+        ZJob job = CURRENT.get();
+        if (job != null)
+            job.expect(Math.max(0, input), Math.max(0, output), Math.max(0, entries));
+    }
+
+    /**
+     * Must be called by tasks as they finish an entry, so that their progress
+     * can be shown.
+     */
+    public static void entryDone() {
+        ZJob job = CURRENT.get();
+        if (job != null)
+            job.entryDone();
+    }
+
+    long getProcessedBytes() {
+        return processed.sum();
+    }
+
+    List<ZJob> getRunningJobs() {
+        List<ZJob> ret = new ArrayList<>();
+        for (ZJob job : jobs.values())
+            if (job.getState() == ZJob.State.RUNNING)
+                ret.add(job);
+        return ret;
+    }
+
+    private synchronized void lendThread() {
+        lent++;
+        resize();
+    }
+
+    private synchronized void reclaimThread() {
+        lent--;
+        resize();
+    }
+
+    /**
+     * Keep a journal of submitted extractions and compressions, see
+     * {@link JobJournal}. Tasks left unfinished by the last run are read from
+     * it, and can be requested again with {@link #restoreUnfinished}.
+     * 
+     * @param file
+     *            The journal file.
+     */
+    public void openJournal(File file) {
+        if (journal != null)
+            return;
+        try {
+            journal = new JobJournal(file);
+        } catch (IOException e) {
+            MessageManager.inst().severe("Could not open the task journal, tasks will not be restored after a restart.", e);
+        }
+    }
+
+    public Optional<JobJournal> getJournal() {
+        return Optional.ofNullable(journal);
+    }
+
+    /**
+     * Request again, in the order they were submitted, the tasks which the
+     * last run did not finish. This is done on a thread of its own, as
+     * requests are checked and scanned before they are queued. Restored tasks
+     * are not held to the limits of the queue, see {@link ZRequest#restore}.
+     * 
+     * @param sender
+     *            The command sender to request the tasks as, and to tell about
+     *            them.
+     */
+    public void restoreUnfinished(ICommandSender sender) {
+        final JobJournal journal = this.journal;
+        if (journal == null)
+            return;
+        final Map<Integer, ZRequest> unfinished = journal.getUnfinished();
+        if (unfinished.isEmpty())
+            return;
+        Thread t = new Thread(() -> {
+            MessageManager.inst().restoringTasks(sender, unfinished.size());
+            for (Map.Entry<Integer, ZRequest> e : unfinished.entrySet()) {
+                if (executor.isShutdown())
+                    return;
+                e.getValue().restore(journal.wasInterrupted(e.getKey())).submit(sender);
+                // Left for the next run if the servicer shut down meanwhile.
+                if (executor.isShutdown())
+                    return;
+                // Requested again under a new id, or rejected for good.
+                journal.finished(e.getKey());
+            }
+        }, "ZipExtractor Task Restore");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Mark a job as finished and tell the senders attached to it.
+     */
+    private void finish(ZJob job, ZJob.State state) {
+        job.finished(state);
+        JobJournal journal = this.journal;
+        if (journal != null)
+            journal.finished(job.getId());
+        for (ICommandSender sender : job.takeAttached())
+            MessageManager.inst().attachedTaskFinished(sender, job);
+    }
+
+    /**
+     * Evict finished jobs once they are old enough, or too many.
+     */
+    private void prune() {
+        final long cutoff = System.currentTimeMillis() - FINISHED_RETENTION;
+        List<ZJob> finished = new ArrayList<>();
+        for (ZJob job : jobs.values()) {
+            if (!job.getState().isFinished())
+                continue;
+            if (job.getFinished() < cutoff)
+                jobs.remove(job.getId());
+            else
+                finished.add(job);
+        }
+        if (finished.size() > MAX_FINISHED) {
+            finished.sort(Comparator.comparingLong(ZJob::getFinished));
+            for (ZJob job : finished.subList(0, finished.size() - MAX_FINISHED))
+                jobs.remove(job.getId());
+        }
+    }
+
+    /**
+     * Limit the share of the executor a single sender may take.
+     * 
+     * @param maxQueued
+     *            The number of tasks a sender may have queued, or zero for no limit.
+     * @param maxRunning
+     *            The number of tasks of a sender which may run at the same time,
+     *            or zero for no limit.
+     */
+    public void setSenderLimits(int maxQueued, int maxRunning) {
+        this.maxQueuedPerSender = maxQueued;
+        queue.setMaxRunning(maxRunning);
+    }
+
+    public int getMaxQueuedPerSender() {
+        return maxQueuedPerSender;
+    }
+
+    /**
+     * Limit the number of tasks writing to a single device, see
+     * {@link DeviceLimits}.
+     * 
+     * @param rotational
+     *            The limit of spinning disks, or zero for none.
+     * @param solidState
+     *            The limit of other devices, or zero for none.
+     * @param overrides
+     *            Limits of single devices, formatted as <code>path=limit</code>.
+     */
+    public void setDeviceLimits(int rotational, int solidState, List<String> overrides) {
+        devices.setLimits(rotational, solidState, overrides);
+        queue.limitsChanged();
+    }
+
+    public DeviceLimits getDeviceLimits() {
+        return devices;
+    }
+
+    /**
+     * Queue a task which reserves its estimated memory usage from the global
+     * budget before it runs. While other tasks hold too much of the budget the
+     * task waits, and the sender is told so.
+     * 
+     * If the job has a key and an identical job is queued or running, the
+     * sender is attached to that job instead, see {@link ZJob#getDuplicateOf()}.
+     * 
+     * @param sender
+     *            The command sender who requested the task.
+     * @param job
+     *            The job the task is listed as.
+     * @param memory
+     *            The estimated memory usage of the task, in bytes.
+     * @param task
+     *            The task to be queued and executed, returning false if it failed.
+     * @return An error code, see {@link #submit(Runnable)}.
+     */
+    public synchronized int submit(ICommandSender sender, ZJob job, long memory, BooleanSupplier task) {
+        if (job.getKey() != null && !executor.isShutdown()) {
+            for (ZJob other : jobs.values()) {
+                if (job.getKey().equals(other.getKey()) && other.attach(sender)) {
+                    job.setDuplicateOf(other);
+                    return 4;
+                }
+            }
+        }
+        if (memory <= 0)
+            return submit(job, task);
+        return submit(job, () -> {
+            if (!budget.tryAcquire(memory)) {
+                MessageManager.inst().waitingForMemory(sender, job.getType());
+                try {
+                    budget.acquire(memory);
+                } catch (InterruptedException e) {
+                    MessageManager.inst().taskInterruption(sender, job.getType());
+                    return false;
+                }
+            }
+            try {
+                return task.getAsBoolean();
+            } finally {
+                budget.release(memory);
+            }
+        });
+    }
+
     public int getMaxQueueSize() {
         return maxQueueSize;
     }
@@ -91,13 +678,304 @@ public class ZServicer {
     }
 
     public boolean isQueueFull() {
-        return executor.getQueue().remainingCapacity() == 0;
+        return queue.size() >= maxQueueSize;
+    }
+
+    /**
+     * Apply the settings of the configuration, once the servicer has been
+     * initialized and again whenever the configuration is reloaded. The size
+     * of the queue only takes effect on initialization.
+     * 
+     * @param config
+     *            The configuration.
+     * @param loadSignal
+     *            The measure of server load to back off by, or null for none.
+     */
+    public void configure(IConfigManager config, ILoadSignal loadSignal) {
+        setMaximumPoolSize(config.getMaxPoolSize());
+        setAutoTune(config.autoTuneThreadPool());
+        setIOThreads(config.getIOThreads());
+        setDeviceLimits(config.getRotationalDeviceTasks(), config.getSolidStateDeviceTasks(), config.getDeviceTaskLimits());
+        setWorkerThreads(config.getWorkerThreads());
+        setMemoryBudget(config.getMemoryBudget());
+        setThrottle(config.getReadLimit(), config.getWriteLimit(), config.getTaskReadLimit(), config.getTaskWriteLimit());
+        setLoadSignal(loadSignal, config.getSlowDownTickTime(), config.getPauseTickTime());
+        setSenderLimits(config.getMaxQueuedPerSender(), config.getMaxRunningPerSender());
+        XZProvider.setOptions(config.getXZPreset(), config.getXZDictionarySize());
+    }
+
+    /**
+     * Set the number of tasks run at once. When the pool is tuned
+     * automatically, this is the most it may grow to.
+     * 
+     * @param size
+     *            The pool size.
+     */
+    public synchronized void setMaximumPoolSize(int size) {
+        maxPoolSize = size;
+        poolSize = tuner == null ? size : Math.min(poolSize, size);
+        resize();
+    }
+
+    public synchronized int getMaximumPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @return The number of tasks currently run at once.
+     */
+    public synchronized int getPoolSize() {
+        return poolSize;
     }
 
-    public void setMaximumPoolSize(int size) {
+    synchronized void setPoolSize(int size) {
+        poolSize = size;
+        resize();
+    }
+
+    /**
+     * Enable or disable automatic tuning of the pool size, see
+     * {@link PoolTuner}. Tuning starts from a single thread.
+     * 
+     * @param enabled
+     *            Whether or not to tune the pool size.
+     */
+    public synchronized void setAutoTune(boolean enabled) {
+        if (enabled == (tuner != null) || executor.isShutdown())
+            return;
+        if (enabled) {
+            tuner = new PoolTuner(this);
+            tuning = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "ZipExtractor Pool Tuner");
+                t.setDaemon(true);
+                return t;
+            });
+            tuning.scheduleWithFixedDelay(tuner::tick, PoolTuner.INTERVAL, PoolTuner.INTERVAL, TimeUnit.MILLISECONDS);
+            poolSize = 1;
+        } else {
+            tuning.shutdownNow();
+            tuning = null;
+            tuner = null;
+            poolSize = maxPoolSize;
+        }
+        resize();
+    }
+
+    /**
+     * @return The pool tuner, if the pool size is tuned automatically.
+     */
+    public synchronized Optional<PoolTuner> getTuner() {
+        return Optional.ofNullable(tuner);
+    }
+
+    /**
+     * Back tasks off while the server is under load, see {@link LoadGovernor}.
+     * 
+     * @param signal
+     *            The load of the server, or null to never back off.
+     * @param slowTickTime
+     *            The tick time in milliseconds past which tasks are run one at
+     *            a time, or zero for none.
+     * @param pauseTickTime
+     *            The tick time in milliseconds past which background tasks are
+     *            held back, or zero for none.
+     */
+    public void setLoadSignal(ILoadSignal signal, double slowTickTime, double pauseTickTime) {
+        LoadGovernor started = null;
+        synchronized (this) {
+            if (governing != null) {
+                governing.shutdownNow();
+                governing = null;
+                governor = null;
+            }
+            if (signal != null && (slowTickTime > 0 || pauseTickTime > 0) && !executor.isShutdown()) {
+                started = governor = new LoadGovernor(this, signal, Math.max(0, slowTickTime), Math.max(0, pauseTickTime));
+                governing = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread t = new Thread(r, "ZipExtractor Load Governor");
+                    t.setDaemon(true);
+                    return t;
+                });
+                governing.scheduleWithFixedDelay(governor::tick, LoadGovernor.INTERVAL, LoadGovernor.INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        setLoadLevel(started, LoadGovernor.Level.NORMAL);
+    }
+
+    /**
+     * @return The load governor, if tasks back off while the server is under
+     *         load.
+     */
+    public synchronized Optional<LoadGovernor> getGovernor() {
+        return Optional.ofNullable(governor);
+    }
+
+    /**
+     * @param from
+     *            The governor which picked the level, a replaced governor is
+     *            ignored.
+     * @param level
+     *            The level to back off to.
+     */
+    void setLoadLevel(LoadGovernor from, LoadGovernor.Level level) {
+        LoadGovernor.Level previous;
+        synchronized (this) {
+            if (from != governor || level == loadLevel)
+                return;
+            previous = loadLevel;
+            loadLevel = level;
+            resize();
+        }
+        // Jobs take the servicer's lock while they hold their own, see park.
+        boolean hold = level == LoadGovernor.Level.PAUSED;
+        for (ZJob job : jobs.values()) {
+            if (job.getPriority() != ZPriority.INTERACTIVE)
+                job.setHeld(hold);
+        }
+        queue.limitsChanged();
+        if (level.ordinal() > previous.ordinal())
+            MessageManager.inst().info(hold ? "The server is under heavy load, background tasks are held back."
+                    : "The server is under load, tasks are run one at a time.");
+        else
+            MessageManager.inst().info("The server load has eased, tasks are no longer held back.");
+    }
+
+    private void resize() {
+        // Under load, tasks are run one at a time.
+        final int size = (loadLevel == LoadGovernor.Level.NORMAL ? poolSize : Math.min(poolSize, 1)) + lent;
         if (executor.getMaximumPoolSize() == size)
             return;
-        executor.setMaximumPoolSize(size);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+            executor.prestartAllCoreThreads();
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Get the pool used to process the entries of a single archive in parallel.
+     * Work submitted to this pool must never wait on other work submitted to it.
+     * 
+     * @return The shared worker pool.
+     */
+    public ExecutorService getWorkerPool() {
+        return workers;
+    }
+
+    /**
+     * Get the pool used to run the stages of a streamed operation. Each stage
+     * is given its own thread, as stages wait on one another.
+     * 
+     * @return The shared stage pool.
+     */
+    public ExecutorService getStagePool() {
+        return stages;
+    }
+
+    /**
+     * Get the pool which creates and writes the files of extractions while the
+     * tasks go on decoding. It is sized apart from the worker pool, which does
+     * the decoding.
+     * 
+     * @return The shared I/O pool.
+     */
+    public ExecutorService getIOPool() {
+        return io;
+    }
+
+    /**
+     * @return The number of I/O threads, or zero if tasks write their own files.
+     */
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+    public void setIOThreads(int size) {
+        ioThreads = size;
+        size = Math.max(1, size);
+        if (io.getMaximumPoolSize() == size)
+            return;
+        if (size > io.getMaximumPoolSize()) {
+            io.setMaximumPoolSize(size);
+            io.setCorePoolSize(size);
+        } else {
+            io.setCorePoolSize(size);
+            io.setMaximumPoolSize(size);
+        }
+    }
+
+    public int getWorkerThreads() {
+        return workers.getMaximumPoolSize();
+    }
+
+    public void setWorkerThreads(int size) {
+        if (workers.getMaximumPoolSize() == size)
+            return;
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    /**
+     * @param bytes
+     *            The memory budget shared by all tasks, or zero for no limit.
+     */
+    public void setMemoryBudget(long bytes) {
+        budget.setLimit(bytes);
+    }
+
+    /**
+     * Limit the rate at which tasks read and write, taking effect right away
+     * for running tasks as well.
+     * 
+     * @param read
+     *            The bytes per second all tasks may read together, or zero for
+     *            no limit.
+     * @param write
+     *            The bytes per second all tasks may write together, or zero for
+     *            no limit.
+     * @param taskRead
+     *            The bytes per second a single task may read, or zero for no
+     *            limit.
+     * @param taskWrite
+     *            The bytes per second a single task may write, or zero for no
+     *            limit.
+     */
+    public void setThrottle(long read, long write, long taskRead, long taskWrite) {
+        readThrottle.setRate(read);
+        writeThrottle.setRate(write);
+        this.taskReadLimit = Math.max(0, taskRead);
+        this.taskWriteLimit = Math.max(0, taskWrite);
+        for (ZJob job : jobs.values()) {
+            job.getReadThrottle().setRate(taskReadLimit);
+            job.getWriteThrottle().setRate(taskWriteLimit);
+        }
+    }
+
+    public long getReadLimit() {
+        return readThrottle.getRate();
+    }
+
+    public long getWriteLimit() {
+        return writeThrottle.getRate();
+    }
+
+    public long getTaskReadLimit() {
+        return taskReadLimit;
+    }
+
+    public long getTaskWriteLimit() {
+        return taskWriteLimit;
     }
 
     public boolean isTerminated() {
@@ -111,12 +989,26 @@ public class ZServicer {
     public void terminate(boolean force, boolean wait) {
         if (isTerminated() || isTerminating())
             return;
+        setAutoTune(false);
+        setLoadSignal(null, 0, 0);
         MessageManager mm = MessageManager.inst();
         try {
             if (force) {
+                // Tasks cut short are left unfinished in the journal, so that
+                // they are restored by the next run.
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
                 mm.info(
                         "Forcing executor service to shutdown. This could be messy if there are outstanding tasks.");
-                executor.shutdownNow();
+                for (Runnable r : executor.shutdownNow()) {
+                    ((QueuedTask) r).cancel(false);
+                    finish(((QueuedTask) r).job, ZJob.State.CANCELLED);
+                }
+                workers.shutdownNow();
+                stages.shutdownNow();
+                io.shutdownNow();
             } else {
                 executor.shutdown();
                 if ((executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) && wait) {
@@ -126,18 +1018,410 @@ public class ZServicer {
                             + ".";
                     mm.info(info);
                     mm.sendGlobal(info, "zipextractor.harmless.notify");
-                    for (Future<?> future : futures) {
-                        if (future.isDone())
+                    for (ZJob job : jobs.values()) {
+                        Future<?> future = job.getFuture();
+                        if (future == null || future.isDone())
                             continue;
-                        future.get();
+                        try {
+                            future.get();
+                        } catch (CancellationException | ExecutionException e) {
+                            // Cancelled while we waited, or failed.
+                        }
                     }
                     mm.sendGlobal("All tasks have been completed.",
                             "zipextractor.harmless.notify");
                     mm.info("All tasks have been completed.");
                 }
             }
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (InterruptedException e) {
             mm.severe("Executor servive termination has been interrupted.", e);
         }
     }
+
+    /**
+     * A queued task, ordered by its submission time plus the handicap of its
+     * priority. Ties are broken by submission order. Parts of a running job
+     * leave the job's state to the job itself.
+     */
+    private class QueuedTask extends FutureTask<Boolean> implements Comparable<QueuedTask> {
+
+        private final ZJob job;
+        private final String owner;
+        private final long key;
+        private final long sequence;
+        private final boolean part;
+
+        private QueuedTask(ZJob job, BooleanSupplier task, long sequence, boolean part) {
+            super(task::getAsBoolean);
+            this.job = job;
+            this.owner = job.getOwner();
+            this.key = System.nanoTime() + job.getPriority().getHandicap();
+            this.sequence = sequence;
+            this.part = part;
+        }
+
+        @Override
+        public void run() {
+            if (!part && !isDone()) {
+                job.started();
+                JobJournal journal = ZServicer.this.journal;
+                if (journal != null)
+                    journal.started(job);
+            }
+            CURRENT.set(job);
+            try {
+                super.run();
+            } finally {
+                CURRENT.remove();
+                queue.finished(this);
+                if (!part)
+                    finish(job, outcome());
+            }
+        }
+
+        private ZJob.State outcome() {
+            if (isCancelled())
+                return ZJob.State.CANCELLED;
+            try {
+                return get() ? ZJob.State.DONE : ZJob.State.FAILED;
+            } catch (InterruptedException | ExecutionException e) {
+                return ZJob.State.FAILED;
+            }
+        }
+
+        @Override
+        public int compareTo(QueuedTask o) {
+            // Subtract so that the comparison survives nanoTime overflowing.
+            long diff = key - o.key;
+            if (diff != 0)
+                return diff < 0 ? -1 : 1;
+            return Long.compare(sequence, o.sequence);
+        }
+
+    }
+
+    /**
+     * The executor's queue. Every sender gets a sub-queue ordered by priority,
+     * and the sub-queues are served in rounds: each sender has one task started
+     * per round, and within a round tasks are ordered by priority. A sender who
+     * was idle joins the current round rather than catching up on the rounds
+     * they missed. A sender which has reached the limit of running tasks is
+     * skipped until one of their tasks finishes. Tasks writing to a device which
+     * has reached its limit are passed over for the sender's next task, see
+     * {@link DeviceLimits}.
+     */
+    private class FairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition ready = lock.newCondition();
+        private final Map<String, PriorityQueue<QueuedTask>> pending = new HashMap<>();
+        private final Map<String, Integer> running = new HashMap<>();
+        // Running tasks by the device they write to.
+        private final Map<String, Integer> writing = new HashMap<>();
+        // The round the next task of each sender is started in.
+        private final Map<String, Long> rounds = new HashMap<>();
+        private long round;
+        private int maxRunning;
+        private int size;
+
+        private void setMaxRunning(int maxRunning) {
+            lock.lock();
+            try {
+                this.maxRunning = maxRunning;
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void limitsChanged() {
+            lock.lock();
+            try {
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int sizeOf(String owner) {
+            lock.lock();
+            try {
+                PriorityQueue<QueuedTask> q = pending.get(owner);
+                return q == null ? 0 : q.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void finished(QueuedTask t) {
+            lock.lock();
+            try {
+                running.computeIfPresent(t.owner, (k, v) -> v > 1 ? v - 1 : null);
+                if (t.job.getDevice() != null)
+                    writing.computeIfPresent(t.job.getDevice(), (k, v) -> v > 1 ? v - 1 : null);
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int positionOf(ZJob job) {
+            lock.lock();
+            try {
+                List<long[]> order = new ArrayList<>();
+                long[] target = null;
+                for (Map.Entry<String, PriorityQueue<QueuedTask>> e : pending.entrySet()) {
+                    List<QueuedTask> tasks = new ArrayList<>(e.getValue());
+                    tasks.sort(null);
+                    long r = roundOf(e.getKey());
+                    for (QueuedTask t : tasks) {
+                        long[] rank = { r++, t.key, t.sequence };
+                        order.add(rank);
+                        if (t.job == job && !t.part)
+                            target = rank;
+                    }
+                }
+                if (target == null)
+                    return 0;
+                int position = 1;
+                for (long[] rank : order) {
+                    if (compareRanks(rank, target) < 0)
+                        position++;
+                }
+                return position;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int compareRanks(long[] a, long[] b) {
+            if (a[0] != b[0])
+                return Long.compare(a[0], b[0]);
+            long diff = a[1] - b[1];
+            if (diff != 0)
+                return diff < 0 ? -1 : 1;
+            return Long.compare(a[2], b[2]);
+        }
+
+        private long roundOf(String owner) {
+            return Math.max(round, rounds.getOrDefault(owner, round));
+        }
+
+        private boolean admits(QueuedTask t) {
+            if (loadLevel == LoadGovernor.Level.PAUSED && t.job.getPriority() != ZPriority.INTERACTIVE)
+                return false;
+            String device = t.job.getDevice();
+            int limit = devices.limitOf(device);
+            return limit <= 0 || writing.getOrDefault(device, 0) < limit;
+        }
+
+        /**
+         * The first task of a sub-queue whose device is not at its limit.
+         */
+        private QueuedTask headOf(PriorityQueue<QueuedTask> q) {
+            QueuedTask head = q.peek();
+            if (admits(head))
+                return head;
+            List<QueuedTask> tasks = new ArrayList<>(q);
+            tasks.sort(null);
+            for (QueuedTask t : tasks) {
+                if (admits(t))
+                    return t;
+            }
+            return null;
+        }
+
+        /**
+         * The head of the sub-queue to be served next, or null if every sender
+         * with queued tasks is at its limit of running tasks, or only has tasks
+         * writing to devices at their limit.
+         */
+        private QueuedTask next() {
+            QueuedTask best = null;
+            long bestRound = 0;
+            for (Map.Entry<String, PriorityQueue<QueuedTask>> e : pending.entrySet()) {
+                if (maxRunning > 0 && running.getOrDefault(e.getKey(), 0) >= maxRunning)
+                    continue;
+                long r = roundOf(e.getKey());
+                QueuedTask head = headOf(e.getValue());
+                if (head == null)
+                    continue;
+                if (best == null || r < bestRound || (r == bestRound && head.compareTo(best) < 0)) {
+                    best = head;
+                    bestRound = r;
+                }
+            }
+            return best;
+        }
+
+        private QueuedTask dequeue() {
+            QueuedTask t = next();
+            if (t != null) {
+                remove(t.owner, t);
+                running.merge(t.owner, 1, Integer::sum);
+                if (t.job.getDevice() != null)
+                    writing.merge(t.job.getDevice(), 1, Integer::sum);
+                round = roundOf(t.owner);
+                rounds.put(t.owner, round + 1);
+                // Senders with nothing queued would join the current round anyway.
+                rounds.keySet().removeIf(owner -> !pending.containsKey(owner) && rounds.get(owner) <= round);
+            }
+            return t;
+        }
+
+        private void remove(String owner, QueuedTask t) {
+            PriorityQueue<QueuedTask> q = pending.get(owner);
+            if (q.remove(t)) {
+                size--;
+                if (q.isEmpty())
+                    pending.remove(owner);
+            }
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            QueuedTask t = (QueuedTask) r;
+            lock.lock();
+            try {
+                pending.computeIfAbsent(t.owner, k -> new PriorityQueue<>()).add(t);
+                size++;
+                ready.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(Runnable r) {
+            offer(r);
+        }
+
+        @Override
+        public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+            return offer(r);
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                QueuedTask t;
+                while ((t = dequeue()) == null)
+                    ready.await();
+                return t;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                QueuedTask t;
+                while ((t = dequeue()) == null) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = ready.awaitNanos(nanos);
+                }
+                return t;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                return next();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof QueuedTask))
+                return false;
+            lock.lock();
+            try {
+                QueuedTask t = (QueuedTask) o;
+                int before = size;
+                if (pending.containsKey(t.owner))
+                    remove(t.owner, t);
+                return size != before;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            lock.lock();
+            try {
+                int n = 0;
+                Iterator<PriorityQueue<QueuedTask>> it = pending.values().iterator();
+                while (it.hasNext() && n < maxElements) {
+                    PriorityQueue<QueuedTask> q = it.next();
+                    while (!q.isEmpty() && n < maxElements) {
+                        c.add(q.poll());
+                        size--;
+                        n++;
+                    }
+                    if (q.isEmpty())
+                        it.remove();
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Iterator<Runnable> iterator() {
+            lock.lock();
+            try {
+                List<Runnable> snapshot = new ArrayList<>(size);
+                for (PriorityQueue<QueuedTask> q : pending.values())
+                    snapshot.addAll(q);
+                return snapshot.iterator();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
 }
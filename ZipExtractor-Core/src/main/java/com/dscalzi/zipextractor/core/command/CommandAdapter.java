@@ -27,17 +27,21 @@ import java.util.regex.Pattern;
 import com.dscalzi.zipextractor.core.WarnData;
 import com.dscalzi.zipextractor.core.ZCompressor;
 import com.dscalzi.zipextractor.core.ZExtractor;
+import com.dscalzi.zipextractor.core.ZJob;
+import com.dscalzi.zipextractor.core.ZPriority;
+import com.dscalzi.zipextractor.core.ZRequest;
 import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.managers.IConfigManager;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
 import com.dscalzi.zipextractor.core.util.IPlugin;
+import com.dscalzi.zipextractor.core.util.PageList;
 import com.dscalzi.zipextractor.core.util.PathUtils;
 
 public class CommandAdapter {
     
     public static final Pattern COMMANDS = Pattern.compile(
-            "^(?iu)(help|extract|compress|src|dest|setsrc|setdest|status|plugindir|terminate|forceterminate|reload|version)");
+            "^(?iu)(help|extract|compress|src|dest|setsrc|setdest|status|tasks|task|pause|resume|cancel|throttle|plugindir|terminate|forceterminate|reload|version)");
     public static final Pattern INTEGERS = Pattern.compile("(\\\\d+|-\\\\d+)");
     
     MessageManager mm;
@@ -113,6 +117,30 @@ public class CommandAdapter {
                 this.cmdStatus(sender);
                 return;
             }
+            if (args[0].equalsIgnoreCase("tasks")) {
+                this.cmdTasks(sender, args);
+                return;
+            }
+            if (args[0].equalsIgnoreCase("task")) {
+                this.cmdTask(sender, args);
+                return;
+            }
+            if (args[0].equalsIgnoreCase("pause")) {
+                this.cmdPause(sender, args, true);
+                return;
+            }
+            if (args[0].equalsIgnoreCase("resume")) {
+                this.cmdPause(sender, args, false);
+                return;
+            }
+            if (args[0].equalsIgnoreCase("cancel")) {
+                this.cmdCancel(sender, args);
+                return;
+            }
+            if (args[0].equalsIgnoreCase("throttle")) {
+                this.cmdThrottle(sender, args);
+                return;
+            }
             if (args[0].equalsIgnoreCase("plugindir")) {
                 this.cmdPluginDir(sender, plugin);
                 return;
@@ -182,6 +210,8 @@ public class CommandAdapter {
             boolean override = !cm.warnOnConflitcts();
             boolean pipe = false;
             String until = null;
+            String batch = null;
+            ZPriority priority = ZPriority.INTERACTIVE;
 
             if(args.length >= 2) {
                 for(int i=1; i<args.length; i++) {
@@ -203,6 +233,16 @@ public class CommandAdapter {
                             mm.untilMissingType(sender);
                             return;
                         }
+                    } else if(args[i].equalsIgnoreCase("--priority")) {
+                        Optional<ZPriority> p = ++i < args.length ? ZPriority.fromName(args[i]) : Optional.empty();
+                        if(!p.isPresent()) {
+                            mm.invalidPriority(sender);
+                            return;
+                        }
+                        priority = p.get();
+                    } else if(args[i].equalsIgnoreCase("--batch")) {
+                        // The pattern is optional.
+                        batch = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "*";
                     }
                     
                 }
@@ -219,7 +259,19 @@ public class CommandAdapter {
                 return;
             }
 
-            ZExtractor.asyncExtract(sender, srcOpt.get(), destOpt.get(), cm.getLoggingProperty(), override, pipe, until);
+            if (batch != null) {
+                if (pipe) {
+                    mm.batchNotPiped(sender);
+                    return;
+                }
+                ZExtractor.asyncExtractBatch(sender, ZRequest.batchExtraction(srcOpt.get(), batch, destOpt.get())
+                        .log(cm.getLoggingProperty()).override(override).priority(priority).build());
+                return;
+            }
+
+            ZExtractor.asyncExtract(sender, ZRequest.extraction(srcOpt.get(), destOpt.get())
+                    .log(cm.getLoggingProperty()).override(override).pipe(pipe, until)
+                    .singlePass(cm.singlePassExtraction()).stream(cm.streamPipedExtraction()).priority(priority).build());
         }
     }
 
@@ -230,12 +282,22 @@ public class CommandAdapter {
         }
 
         boolean override = !cm.warnOnConflitcts();
-        if (args.length >= 2 && args[1].equalsIgnoreCase("--override")) {
-            if (!sender.hasPermission("zipextractor.admin.override.compress")) {
-                mm.noPermission(sender);
-                return;
+        ZPriority priority = ZPriority.INTERACTIVE;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--override")) {
+                if (!sender.hasPermission("zipextractor.admin.override.compress")) {
+                    mm.noPermission(sender);
+                    return;
+                }
+                override = true;
+            } else if (args[i].equalsIgnoreCase("--priority")) {
+                Optional<ZPriority> p = ++i < args.length ? ZPriority.fromName(args[i]) : Optional.empty();
+                if (!p.isPresent()) {
+                    mm.invalidPriority(sender);
+                    return;
+                }
+                priority = p.get();
             }
-            override = true;
         }
 
         Optional<File> srcOpt = cm.getSourceFile();
@@ -249,7 +311,8 @@ public class CommandAdapter {
             return;
         }
 
-        ZCompressor.asyncCompress(sender, srcOpt.get(), destOpt.get(), cm.getLoggingProperty(), override);
+        ZCompressor.asyncCompress(sender, ZRequest.compression(srcOpt.get(), destOpt.get())
+                .log(cm.getLoggingProperty()).override(override).stream(cm.streamPipedCompression()).priority(priority).build());
 
     }
 
@@ -376,6 +439,130 @@ public class CommandAdapter {
             mm.terminating(sender);
     }
 
+    public void cmdTasks(ICommandSender sender, String[] args) {
+        if (!sender.hasPermission("zipextractor.harmless.tasks")) {
+            mm.noPermission(sender);
+            return;
+        }
+        int page = 0;
+        if (args.length > 1) {
+            try {
+                page = Integer.parseInt(args[1]) - 1;
+            } catch (NumberFormatException e) {
+                mm.invalidPage(sender);
+                return;
+            }
+        }
+        mm.taskList(sender, page, new PageList<>(7, ZServicer.getInstance().getJobs()));
+    }
+
+    public void cmdTask(ICommandSender sender, String[] args) {
+        if (!sender.hasPermission("zipextractor.harmless.tasks")) {
+            mm.noPermission(sender);
+            return;
+        }
+        Optional<ZJob> jobOpt = resolveJob(sender, args);
+        if (jobOpt.isPresent())
+            mm.taskInfo(sender, jobOpt.get(), ZServicer.getInstance().getPosition(jobOpt.get()));
+    }
+
+    public void cmdCancel(ICommandSender sender, String[] args) {
+        if (!sender.hasPermission("zipextractor.admin.cancel")) {
+            mm.noPermission(sender);
+            return;
+        }
+        Optional<ZJob> jobOpt = resolveJob(sender, args);
+        if (!jobOpt.isPresent())
+            return;
+        if (ZServicer.getInstance().cancel(jobOpt.get()))
+            mm.taskCancelled(sender, jobOpt.get());
+        else
+            mm.taskAlreadyFinished(sender, jobOpt.get());
+    }
+
+    public void cmdPause(ICommandSender sender, String[] args, boolean pause) {
+        if (!sender.hasPermission("zipextractor.admin.pause")) {
+            mm.noPermission(sender);
+            return;
+        }
+        Optional<ZJob> jobOpt = resolveJob(sender, args);
+        if (!jobOpt.isPresent())
+            return;
+        ZJob job = jobOpt.get();
+        if (pause) {
+            if (ZServicer.getInstance().pause(job))
+                mm.taskPausing(sender, job);
+            else
+                mm.taskNotRunning(sender, job);
+        } else {
+            if (ZServicer.getInstance().resume(job))
+                mm.taskResumed(sender, job);
+            else
+                mm.taskNotPaused(sender, job);
+        }
+    }
+
+    public void cmdThrottle(ICommandSender sender, String[] args) {
+        if (!sender.hasPermission("zipextractor.admin.throttle")) {
+            mm.noPermission(sender);
+            return;
+        }
+        ZServicer z = ZServicer.getInstance();
+        if (args.length < 2) {
+            mm.throttleStatus(sender);
+            return;
+        }
+        boolean write = args[1].equalsIgnoreCase("write");
+        if ((!write && !args[1].equalsIgnoreCase("read")) || args.length < 3) {
+            mm.invalidThrottle(sender);
+            return;
+        }
+        boolean task = args.length > 3 && args[3].equalsIgnoreCase("--task");
+        long limit;
+        if (args[2].equalsIgnoreCase("off")) {
+            limit = 0;
+        } else {
+            try {
+                double mb = Double.parseDouble(args[2]);
+                if (mb < 0 || Double.isNaN(mb) || Double.isInfinite(mb))
+                    throw new NumberFormatException();
+                limit = (long) (mb * (1 << 20));
+            } catch (NumberFormatException e) {
+                mm.invalidThrottle(sender);
+                return;
+            }
+        }
+        long read = z.getReadLimit(), taskRead = z.getTaskReadLimit();
+        long written = z.getWriteLimit(), taskWrite = z.getTaskWriteLimit();
+        if (write && task)
+            taskWrite = limit;
+        else if (write)
+            written = limit;
+        else if (task)
+            taskRead = limit;
+        else
+            read = limit;
+        z.setThrottle(read, written, taskRead, taskWrite);
+        mm.throttleChanged(sender, write, task, limit);
+    }
+
+    private Optional<ZJob> resolveJob(ICommandSender sender, String[] args) {
+        if (args.length < 2) {
+            mm.specifyATask(sender);
+            return Optional.empty();
+        }
+        String id = args[1].startsWith("#") ? args[1].substring(1) : args[1];
+        Optional<ZJob> jobOpt = Optional.empty();
+        try {
+            jobOpt = ZServicer.getInstance().getJob(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        if (!jobOpt.isPresent())
+            mm.taskNotFound(sender, args[1]);
+        return jobOpt;
+    }
+
     public void cmdStatus(ICommandSender sender) {
         if (!sender.hasPermission("zipextractor.harmless.status")) {
             mm.noPermission(sender);
@@ -427,6 +614,22 @@ public class CommandAdapter {
                         ret.addAll(subCommands(sender, newArgs));
                     }
 
+                    boolean e = (sender.hasPermission("zipextractor.harmless.tasks") && "task".equals(arg0Normal))
+                            || (sender.hasPermission("zipextractor.admin.pause") && ("pause".equals(arg0Normal) || "resume".equals(arg0Normal)))
+                            || (sender.hasPermission("zipextractor.admin.cancel") && "cancel".equals(arg0Normal));
+                    if (e) {
+                        for (ZJob job : ZServicer.getInstance().getJobs())
+                            if (!job.getState().isFinished() && String.valueOf(job.getId()).startsWith(args[1]))
+                                ret.add(String.valueOf(job.getId()));
+                    }
+
+                    if (sender.hasPermission("zipextractor.admin.throttle") && "throttle".equals(arg0Normal)) {
+                        if ("read".startsWith(args[1].toLowerCase()))
+                            ret.add("read");
+                        if ("write".startsWith(args[1].toLowerCase()))
+                            ret.add("write");
+                    }
+
                     if (c && ZExtractor.getWarnData(sender.getName()).isPresent() && "view".startsWith(args[1].toLowerCase())) {
                         ret.add("view");
                     }
@@ -435,11 +638,31 @@ public class CommandAdapter {
                     }
                 }
                 
+                if(args.length == 4 && sender.hasPermission("zipextractor.admin.throttle") && "throttle".equals(arg0Normal)) {
+                    if ("--task".startsWith(args[3].toLowerCase()))
+                        ret.add("--task");
+                }
+
                 if(args.length >= 2) {
-                    if(c) {
+                    boolean d = sender.hasPermission("zipextractor.admin.compress")
+                            && "compress".startsWith(arg0Normal);
+                    if((c || d) && args[args.length-2].equalsIgnoreCase("--priority")) {
+                        for(ZPriority p : ZPriority.values())
+                            if(p.getName().startsWith(args[args.length-1].toLowerCase()))
+                                ret.add(p.getName());
+                    } else if((c || d) && "--priority".startsWith(args[args.length-1].toLowerCase())) {
+                        ret.add("--priority");
+                    }
+                    if(c && !args[args.length-2].equalsIgnoreCase("--priority")) {
                         if(args[args.length-2].equalsIgnoreCase("--until")) {
                             ret.addAll(ZExtractor.supportedExtensions());
+                        } else if(args[args.length-2].equalsIgnoreCase("--batch") && !args[args.length-1].startsWith("-")) {
+                            for(String ext : ZExtractor.supportedExtensions())
+                                if(("*." + ext).startsWith(args[args.length-1].toLowerCase()))
+                                    ret.add("*." + ext);
                         } else {
+                            if("--batch".startsWith(args[args.length-1]))
+                                ret.add("--batch");
                             if("--all".startsWith(args[args.length-1]))
                                 ret.add("--all");
                             if("--until".startsWith(args[args.length-1]))
@@ -478,6 +701,18 @@ public class CommandAdapter {
                 ret.add("setdest");
             if (sender.hasPermission("zipextractor.harmless.status") && "status".startsWith(args[0].toLowerCase()))
                 ret.add("status");
+            if (sender.hasPermission("zipextractor.harmless.tasks") && "tasks".startsWith(args[0].toLowerCase()))
+                ret.add("tasks");
+            if (sender.hasPermission("zipextractor.harmless.tasks") && "task".startsWith(args[0].toLowerCase()))
+                ret.add("task");
+            if (sender.hasPermission("zipextractor.admin.pause") && "pause".startsWith(args[0].toLowerCase()))
+                ret.add("pause");
+            if (sender.hasPermission("zipextractor.admin.pause") && "resume".startsWith(args[0].toLowerCase()))
+                ret.add("resume");
+            if (sender.hasPermission("zipextractor.admin.cancel") && "cancel".startsWith(args[0].toLowerCase()))
+                ret.add("cancel");
+            if (sender.hasPermission("zipextractor.admin.throttle") && "throttle".startsWith(args[0].toLowerCase()))
+                ret.add("throttle");
             if (sender.hasPermission("zipextractor.admin.plugindir") && "plugindir".startsWith(args[0].toLowerCase()))
                 ret.add("plugindir");
             if (sender.hasPermission("zipextractor.admin.terminate") && "terminate".startsWith(args[0].toLowerCase()))
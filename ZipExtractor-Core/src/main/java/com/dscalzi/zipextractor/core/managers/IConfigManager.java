@@ -19,6 +19,7 @@
 package com.dscalzi.zipextractor.core.managers;
 
 import java.io.File;
+import java.util.List;
 import java.util.Optional;
 
 public interface IConfigManager {
@@ -38,14 +39,56 @@ public interface IConfigManager {
     boolean getLoggingProperty();
 
     boolean warnOnConflitcts();
+
+    boolean singlePassExtraction();
+
+    boolean streamPipedExtraction();
+
+    boolean streamPipedCompression();
     
     boolean tabCompleteFiles();
 
     boolean waitForTasksOnShutdown();
 
+    boolean restoreUnfinishedTasks();
+
     int getMaxQueueSize();
 
     int getMaxPoolSize();
+
+    boolean autoTuneThreadPool();
+
+    int getMaxQueuedPerSender();
+
+    int getMaxRunningPerSender();
+
+    int getWorkerThreads();
+
+    int getIOThreads();
+
+    int getRotationalDeviceTasks();
+
+    int getSolidStateDeviceTasks();
+
+    List<String> getDeviceTaskLimits();
+
+    int getXZPreset();
+
+    int getXZDictionarySize();
+
+    long getMemoryBudget();
+
+    long getReadLimit();
+
+    long getWriteLimit();
+
+    long getTaskReadLimit();
+
+    long getTaskWriteLimit();
+
+    double getSlowDownTickTime();
+
+    double getPauseTickTime();
     
     double getSystemConfigVersion();
 
@@ -22,8 +22,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.dscalzi.zipextractor.core.DeviceLimits;
+import com.dscalzi.zipextractor.core.LoadGovernor;
+import com.dscalzi.zipextractor.core.PoolTuner;
 import com.dscalzi.zipextractor.core.ZCompressor;
 import com.dscalzi.zipextractor.core.ZExtractor;
+import com.dscalzi.zipextractor.core.ZJob;
 import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
@@ -188,6 +192,23 @@ public class MessageManager {
         sendError(sender, "&o" + filePath);
     }
 
+    public void sourceNotDirectory(ICommandSender sender, String filePath) {
+        sendError(sender, "The source path must be a directory to extract a batch:");
+        sendError(sender, "&o" + filePath);
+    }
+
+    public void noArchivesMatched(ICommandSender sender, String glob) {
+        sendError(sender, "No supported archives in the source directory match " + "&o" + glob + cError + ".");
+    }
+
+    public void invalidBatchPattern(ICommandSender sender, String glob) {
+        sendError(sender, "Invalid pattern " + "&o" + glob + cError + ".");
+    }
+
+    public void batchNotPiped(ICommandSender sender) {
+        sendError(sender, "A batch cannot be extracted with --all or --until.");
+    }
+
     public void sourceNoExt(ICommandSender sender, String filePath) {
         sendError(sender, "The source file must have an extension:");
         sendError(sender, "&o" + filePath);
@@ -200,6 +221,16 @@ public class MessageManager {
         plugin.severe("Error during " + t.getProcessName() + ". Access is denied to " + path);
     }
 
+    public void filesSkipped(ICommandSender sender, ZTask t, List<String> paths) {
+        if (!sender.isConsole()) {
+            sendError(sender, paths.size() + " file" + (paths.size() == 1 ? "" : "s") + " could not be read during "
+                    + t.getProcessName() + " and " + (paths.size() == 1 ? "was" : "were") + " left out (See console for details).");
+        }
+        for (String path : paths) {
+            plugin.warn("Unable to read " + path + ", it was left out of the " + t.getProcessName() + ".");
+        }
+    }
+
     public void invalidExtractionExtension(ICommandSender sender) {
         sendError(sender, "Currently extractions are only supported for "
                 + listToString(ZExtractor.supportedExtensions()) + " files.");
@@ -254,13 +285,13 @@ public class MessageManager {
         sendError(sender, "Please specify a path.");
     }
 
-    public void addToQueue(ICommandSender sender, int position) {
+    public void addToQueue(ICommandSender sender, int position, int id) {
         String ordinal;
         if (position == 1 || position == 0)
             ordinal = "next";
         else
             ordinal = ordinal(position);
-        sendSuccess(sender, "Your task has been added to the queue. It is currently " + ordinal + ".");
+        sendSuccess(sender, "Your task (#" + id + ") has been added to the queue. It is currently " + ordinal + ".");
     }
 
     public void queueFull(ICommandSender sender, int maxQueueSize) {
@@ -268,6 +299,22 @@ public class MessageManager {
                 + maxQueueSize + " has been reached.");
     }
 
+    public void memoryBudgetExceeded(ICommandSender sender, ZTask task, long needed, long budget) {
+        sendError(sender, "Unable to start your " + task.getProcessName() + ", it needs an estimated "
+                + toMegabytes(needed) + " MB of memory while the memory budget is " + toMegabytes(budget) + " MB.");
+    }
+
+    public void waitingForMemory(ICommandSender sender, ZTask task) {
+        if (!sender.isConsole())
+            sendMessage(sender, "Your " + task.getProcessName() + " is waiting for other tasks to free up memory.");
+        plugin.info("A " + task.getProcessName() + " is waiting for other tasks to free up memory.");
+    }
+
+    public void senderQueueFull(ICommandSender sender, int maxQueued) {
+        sendError(sender, "Unable to add your task to the queue, you already have "
+                + maxQueued + " task" + (maxQueued == 1 ? "" : "s") + " waiting.");
+    }
+
     public void executorTerminated(ICommandSender sender, ZTask task) {
         sendError(sender, "The execution servicer has been shutdown and has therefore rejected your "
                 + task.getProcessName() + " request.");
@@ -299,6 +346,90 @@ public class MessageManager {
                 + ", unable to continue. This is most likely due to a forced termination of the execution servicer.");
     }
     
+    public void specifyATask(ICommandSender sender) {
+        sendError(sender, "You must provide a task id. Use /ZipExtractor tasks to list them.");
+    }
+
+    public void taskNotFound(ICommandSender sender, String id) {
+        sendError(sender, "No task with the id " + id + " was found. Finished tasks are only kept for a while.");
+    }
+
+    public void restoringTasks(ICommandSender sender, int count) {
+        sendMessage(sender, "Restoring " + count + " task" + (count == 1 ? "" : "s")
+                + " left unfinished by the last run.");
+    }
+
+    public void resumingExtraction(ICommandSender sender, String name, int entries) {
+        sendSuccess(sender, "Resuming the interrupted extraction of " + name + ", " + entries
+                + (entries == 1 ? " entry was" : " entries were") + " already extracted.");
+    }
+
+    public void attachedToTask(ICommandSender sender, ZJob job) {
+        sendSuccess(sender, "An identical task (#" + job.getId() + ") is already "
+                + (job.getState() == ZJob.State.QUEUED ? "queued" : "running")
+                + ". Your request has been attached to it, you will be told when it finishes.");
+    }
+
+    public void attachedTaskFinished(ICommandSender sender, ZJob job) {
+        String task = "Task #" + job.getId() + " (" + job.getDescription() + "), which your request was attached to, ";
+        switch (job.getState()) {
+        case DONE:
+            sendSuccess(sender, task + "has completed.");
+            break;
+        case CANCELLED:
+            sendError(sender, task + "has been cancelled.");
+            break;
+        default:
+            sendError(sender, task + "has failed. " + job.getOwner() + " was told why.");
+        }
+    }
+
+    public void taskCancelled(ICommandSender sender, ZJob job) {
+        sendSuccess(sender, "Task #" + job.getId() + " (" + job.getDescription() + ") has been cancelled.");
+    }
+
+    public void taskAlreadyFinished(ICommandSender sender, ZJob job) {
+        sendError(sender, "Task #" + job.getId() + " has already finished.");
+    }
+
+    public void taskPausing(ICommandSender sender, ZJob job) {
+        sendSuccess(sender, "Task #" + job.getId() + " (" + job.getDescription()
+                + ") will pause after its current entry. Use /ZipExtractor resume " + job.getId() + " to continue it.");
+    }
+
+    public void taskResumed(ICommandSender sender, ZJob job) {
+        sendSuccess(sender, "Task #" + job.getId() + " (" + job.getDescription() + ") has been resumed.");
+    }
+
+    public void taskNotRunning(ICommandSender sender, ZJob job) {
+        sendError(sender, "Task #" + job.getId() + " is not running" + (job.isPauseRequested() ? ", it is already paused." : "."));
+    }
+
+    public void taskNotPaused(ICommandSender sender, ZJob job) {
+        sendError(sender, "Task #" + job.getId() + " is not paused.");
+    }
+
+    public void throttleStatus(ICommandSender sender) {
+        ZServicer z = ZServicer.getInstance();
+        sendMessage(sender, "I/O Limits" + cPrimary + " | " + "&r" + "All tasks" + cPrimary + " / " + "&r" + "Each task");
+        sender.sendMessage(cPrimary + "| " + cTrim + "Read" + cPrimary + " | " + "&r" + formatRate(z.getReadLimit())
+                + cPrimary + " / " + "&r" + formatRate(z.getTaskReadLimit()));
+        sender.sendMessage(cPrimary + "| " + cTrim + "Write" + cPrimary + " | " + "&r" + formatRate(z.getWriteLimit())
+                + cPrimary + " / " + "&r" + formatRate(z.getTaskWriteLimit()));
+    }
+
+    public void throttleChanged(ICommandSender sender, boolean write, boolean task, long limit) {
+        String what = "The " + (write ? "write" : "read") + " limit " + (task ? "of each task" : "of all tasks");
+        if (limit == 0)
+            sendSuccess(sender, what + " has been removed.");
+        else
+            sendSuccess(sender, what + " is now " + formatRate(limit) + ".");
+    }
+
+    public void invalidThrottle(ICommandSender sender) {
+        sendError(sender, "Syntax is /ZipExtractor throttle <read|write> <MB/s|off> [--task]");
+    }
+
     public void nothingToDo(ICommandSender sender) {
         sendError(sender, "No operation can be performed for your request.");
     }
@@ -311,6 +442,29 @@ public class MessageManager {
         plugin.info("Starting asynchronous " + task.getProcessName() + " of the file '" + fileName + "'..");
     }
 
+    public void startingBatch(ICommandSender sender, int archives, String dirName) {
+        if (!sender.isConsole()) {
+            sendSuccess(sender, "Starting extraction of " + archives + " archive" + (archives == 1 ? "" : "s") + " in '" + dirName + "'..");
+        }
+        plugin.info("Starting asynchronous extraction of " + archives + " archive" + (archives == 1 ? "" : "s") + " in '" + dirName + "'..");
+    }
+
+    public void batchExtractionComplete(ICommandSender sender, File dest, int extracted, List<String> failed) {
+        if (!sender.isConsole()) {
+            if (failed.isEmpty())
+                sendSuccess(sender, "Batch extraction complete, " + extracted + " archive" + (extracted == 1 ? "" : "s") + " extracted (See console for details).");
+            else
+                sendError(sender, "Batch extraction complete, " + extracted + " archive" + (extracted == 1 ? "" : "s") + " extracted and "
+                        + failed.size() + " failed: " + "&o" + String.join(", ", failed) + cError + " (See console for details).");
+        }
+        plugin.info("---------------------------------------------------");
+        plugin.info("Batch extraction complete.");
+        plugin.info(extracted + " archive" + (extracted == 1 ? " has" : "s have") + " been extracted to\n" + dest.toPath().toAbsolutePath().normalize().toString());
+        if (!failed.isEmpty())
+            plugin.info("Failed : " + String.join(", ", failed));
+        plugin.info("---------------------------------------------------");
+    }
+
     public void extractionComplete(ICommandSender sender, File dest) {
         if (!sender.isConsole()) {
             sendSuccess(sender, "Extraction complete (See console for details).");
@@ -355,6 +509,10 @@ public class MessageManager {
         sendError(sender, "You must provide a type (--until <type>).");
     }
 
+    public void invalidPriority(ICommandSender sender) {
+        sendError(sender, "You must provide a priority (--priority <interactive|background|scheduled>).");
+    }
+
     public void invalidPage(ICommandSender sender) {
         sendError(sender, "Page does not exist.");
     }
@@ -374,6 +532,95 @@ public class MessageManager {
         sender.sendMessage(footer);
     }
     
+    public void taskList(ICommandSender sender, int page, PageList<ZJob> jobs) {
+        final String listPrefix = cPrimary + " " + BULLET + " ";
+        final String header = prefix + cPrimary + " Task List";
+
+        if (jobs.size() == 0) {
+            sendMessage(sender, "There are no queued, running or recently finished tasks.");
+            return;
+        }
+        if (page >= jobs.size() || page < 0) {
+            invalidPage(sender);
+            return;
+        }
+
+        String footer = cPrimary + "Page " + "&8" + (page + 1) + cPrimary + " of " + "&8"
+                + jobs.size();
+
+        sender.sendMessage(header);
+        for (ZJob job : jobs.getPage(page))
+            sender.sendMessage(listPrefix + "&r#" + job.getId() + " " + cPrimary + job.getDescription() + " "
+                    + cTrim + "- " + formatState(job.getState()) + cPrimary + " (" + job.getOwner() + ")");
+        sender.sendMessage(footer);
+    }
+
+    public void taskInfo(ICommandSender sender, ZJob job, int position) {
+        final long now = System.currentTimeMillis();
+        String state = formatState(job.getState());
+        if (job.getState() == ZJob.State.QUEUED && position > 0)
+            state += cPrimary + " (" + (position == 1 ? "next" : ordinal(position)) + " in line)";
+        else if (job.getState() == ZJob.State.RUNNING && job.isPauseRequested())
+            state += cPrimary + " (pausing)";
+        else if (job.getState() == ZJob.State.RUNNING && job.isHeld())
+            state += cPrimary + " (held back by server load)";
+
+        sendMessage(sender, "Task #" + job.getId() + cPrimary + " | " + "&r" + job.getDescription());
+        sender.sendMessage(cPrimary + "| " + cTrim + "State" + cPrimary + " | " + state);
+        sender.sendMessage(cPrimary + "| " + cTrim + "Owner" + cPrimary + " | " + "&r" + job.getOwner());
+        sender.sendMessage(cPrimary + "| " + cTrim + "Priority" + cPrimary + " | " + "&r" + job.getPriority().getName());
+        List<ICommandSender> attached = job.getAttached();
+        if (!attached.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            for (ICommandSender s : attached)
+                names.add(s.getName());
+            sender.sendMessage(cPrimary + "| " + cTrim + "Attached" + cPrimary + " | " + "&r" + String.join(", ", names));
+        }
+        if (job.getDevice() != null) {
+            DeviceLimits devices = ZServicer.getInstance().getDeviceLimits();
+            sender.sendMessage(cPrimary + "| " + cTrim + "Device" + cPrimary + " | " + "&r" + job.getDevice()
+                    + (devices.isRotational(job.getDevice()) ? " (spinning disk)" : ""));
+        }
+        sender.sendMessage(cPrimary + "| " + cTrim + "Submitted" + cPrimary + " | " + "&r"
+                + formatDuration(now - job.getSubmitted()) + " ago");
+        if (job.getStarted() > 0) {
+            long end = job.getFinished() > 0 ? job.getFinished() : now;
+            sender.sendMessage(cPrimary + "| " + cTrim + "Running time" + cPrimary + " | " + "&r"
+                    + formatDuration(end - job.getStarted()));
+        }
+        if (job.getStarted() > 0 && !job.getState().isFinished())
+            sender.sendMessage(cPrimary + "| " + cTrim + "Progress" + cPrimary + " | " + "&r" + formatProgress(job));
+    }
+
+    private String formatProgress(ZJob job) {
+        double progress = job.getProgress();
+        String ret = progress < 0 ? "unknown" : (int) (progress * 100) + "%";
+        if (job.getExpectedEntries() > 0)
+            ret += " | " + job.getEntriesDone() + "/" + job.getExpectedEntries() + " entries";
+        ret += " | " + formatBytes((long) job.getThroughput()) + "/s";
+        long eta = job.getEta();
+        if (eta >= 0)
+            ret += " | ETA " + formatDuration(eta);
+        return ret;
+    }
+
+    private String formatState(ZJob.State state) {
+        switch (state) {
+        case RUNNING:
+            return cSuccess + "running";
+        case PAUSED:
+            return cTrim + "paused";
+        case DONE:
+            return "&r" + "done";
+        case FAILED:
+            return cError + "failed";
+        case CANCELLED:
+            return cError + "cancelled";
+        default:
+            return "&r" + "queued";
+        }
+    }
+
     public void commandList(ICommandSender sender, int page) {
         final String listPrefix = cPrimary + " " + BULLET + " ";
 
@@ -396,6 +643,18 @@ public class MessageManager {
             cmds.add(listPrefix + "/ZipExtractor setdest <path> " + cTrim + "- Set the destination's filepath.");
         if (sender.hasPermission("zipextractor.harmless.status"))
             cmds.add(listPrefix + "/ZipExtractor status " + cTrim + "- View the executor's status.");
+        if (sender.hasPermission("zipextractor.harmless.tasks")) {
+            cmds.add(listPrefix + "/ZipExtractor tasks [page] " + cTrim + "- List queued, running and recent tasks.");
+            cmds.add(listPrefix + "/ZipExtractor task <id> " + cTrim + "- View the details of a task.");
+        }
+        if (sender.hasPermission("zipextractor.admin.pause")) {
+            cmds.add(listPrefix + "/ZipExtractor pause <id> " + cTrim + "- Pause a running task between two entries.");
+            cmds.add(listPrefix + "/ZipExtractor resume <id> " + cTrim + "- Resume a paused task where it stopped.");
+        }
+        if (sender.hasPermission("zipextractor.admin.cancel"))
+            cmds.add(listPrefix + "/ZipExtractor cancel <id> " + cTrim + "- Cancel a queued or running task.");
+        if (sender.hasPermission("zipextractor.admin.throttle"))
+            cmds.add(listPrefix + "/ZipExtractor throttle [read|write] [MB/s] " + cTrim + "- View or limit disk usage.");
         if (sender.hasPermission("zipextractor.admin.plugindir"))
             cmds.add(listPrefix + "/ZipExtractor plugindir " + cTrim + "- Get the plugin's full filepath.");
         if (sender.hasPermission("zipextractor.admin.terminate"))
@@ -436,7 +695,7 @@ public class MessageManager {
                 return;
             }
             sendMessage(sender, cPrimary
-                    + "This command will extract the archive specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setsrc <File Path>. The zip contents will be extracted to the destination folder specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setdest <File Path>.");
+                    + "This command will extract the archive specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setsrc <File Path>. The zip contents will be extracted to the destination folder specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setdest <File Path>. Large jobs can be queued with --priority background or scheduled, letting quick interactive tasks run first. If the source is a directory, --batch [pattern] extracts every archive in it matching the pattern, by default all of them, each to a directory of its own under the destination, as a single task.");
             return;
         }
         if (cmd.equalsIgnoreCase("compress")) {
@@ -445,7 +704,7 @@ public class MessageManager {
                 return;
             }
             sendMessage(sender, cPrimary
-                    + "This command will compress the folder specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setsrc <File Path>. The contents will be compressed into a new archive at the location specified specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setdest <File Path>.");
+                    + "This command will compress the folder specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setsrc <File Path>. The contents will be compressed into a new archive at the location specified specified in the config.yml. That value can be edited directly in the file or via the command /ZipExtractor setdest <File Path>. Large jobs can be queued with --priority background or scheduled, letting quick interactive tasks run first.");
             return;
         }
         if (cmd.equalsIgnoreCase("src")) {
@@ -490,7 +749,43 @@ public class MessageManager {
                 return;
             }
             sendMessage(sender, cPrimary
-                    + "This command will display the status of the executor service. If the service has not been terminated, the number of active and queued processes will be displayed.");
+                    + "This command will display the status of the executor service. If the service has not been terminated, the number of active and queued processes will be displayed, along with the size of the thread pool. When the pool is tuned automatically, the measured throughput and CPU usage of the running tasks are shown as well. Each running task is listed with how far along it is, its throughput and the estimated time until it finishes.");
+            return;
+        }
+        if (cmd.equalsIgnoreCase("tasks") || cmd.equalsIgnoreCase("task")) {
+            if (!sender.hasPermission("zipextractor.harmless.tasks")) {
+                noInfoPermission(sender);
+                return;
+            }
+            sendMessage(sender, cPrimary
+                    + "Every extraction and compression is given an id when it is queued. /ZipExtractor tasks lists the queued and running tasks along with those which finished in the last few minutes. /ZipExtractor task <id> shows the state, owner, priority and timing of a single task.");
+            return;
+        }
+        if (cmd.equalsIgnoreCase("pause") || cmd.equalsIgnoreCase("resume")) {
+            if (!sender.hasPermission("zipextractor.admin.pause")) {
+                noInfoPermission(sender);
+                return;
+            }
+            sendMessage(sender, cPrimary
+                    + "These commands suspend and continue a running task. A paused task stops after the entry it is working on and hands its thread over so that other queued tasks can run. Once resumed, it carries on from the same entry without starting over. A paused task keeps its reserved memory.\nSyntax is /ZipExtractor pause <id> and /ZipExtractor resume <id>");
+            return;
+        }
+        if (cmd.equalsIgnoreCase("cancel")) {
+            if (!sender.hasPermission("zipextractor.admin.cancel")) {
+                noInfoPermission(sender);
+                return;
+            }
+            sendMessage(sender, cPrimary
+                    + "This command will cancel a single task, leaving every other task untouched. A queued task is removed from the queue, a running task is interrupted just as it would be by a forced termination.\nSyntax is /ZipExtractor cancel <id>");
+            return;
+        }
+        if (cmd.equalsIgnoreCase("throttle")) {
+            if (!sender.hasPermission("zipextractor.admin.throttle")) {
+                noInfoPermission(sender);
+                return;
+            }
+            sendMessage(sender, cPrimary
+                    + "This command will limit how fast tasks may read from and write to the disk, so that large extractions and backups do not stall the server. Without --task the limit is shared by all running tasks, with it the limit applies to each task on its own. Use off to remove a limit. Without arguments, the current limits are shown. Changes last until the config is reloaded.\nSyntax is /ZipExtractor throttle <read|write> <MB/s|off> [--task]");
             return;
         }
         if (cmd.equalsIgnoreCase("plugindir")) {
@@ -548,6 +843,30 @@ public class MessageManager {
             String status = zs.isQueueFull() ? "&c" + "FULL" : "&a" + "READY";
             sendMessage(sender, "Executor Status | " + status + "&r" + " | Active : " + zs.getActive()
                     + " | Queued : " + zs.getQueued());
+            if (zs.getTuner().isPresent()) {
+                PoolTuner t = zs.getTuner().get();
+                sendMessage(sender, "Thread Pool | " + "&a" + "AUTO" + "&r" + " | Threads : " + zs.getPoolSize() + " of "
+                        + zs.getMaximumPoolSize() + " | Throughput : " + formatBytes((long) t.getThroughput()) + "/s"
+                        + " | CPU : " + Math.round(t.getCpuShare() * 100) + "%");
+            } else {
+                sendMessage(sender, "Thread Pool | " + "&7" + "FIXED" + "&r" + " | Threads : " + zs.getPoolSize());
+            }
+            if (zs.getReadLimit() > 0 || zs.getWriteLimit() > 0 || zs.getTaskReadLimit() > 0 || zs.getTaskWriteLimit() > 0) {
+                sendMessage(sender, "I/O Limits | Read : " + formatRate(zs.getReadLimit()) + " (" + formatRate(zs.getTaskReadLimit())
+                        + " per task) | Write : " + formatRate(zs.getWriteLimit()) + " (" + formatRate(zs.getTaskWriteLimit()) + " per task)");
+            }
+            if (zs.getGovernor().isPresent()) {
+                LoadGovernor g = zs.getGovernor().get();
+                String level = g.getLevel() == LoadGovernor.Level.NORMAL ? "&a" + "NORMAL"
+                        : g.getLevel() == LoadGovernor.Level.SLOW ? "&e" + "SLOW" : "&c" + "PAUSED";
+                sendMessage(sender, "Server Load | " + level + "&r" + " | Tick Time : "
+                        + (g.getTickTime() < 0 ? "unknown" : String.format("%.1f ms", g.getTickTime())));
+            }
+            for (ZJob job : zs.getJobs()) {
+                if (job.getStarted() > 0 && !job.getState().isFinished())
+                    sender.sendMessage(cPrimary + "| " + "&r" + "#" + job.getId() + " " + cTrim + job.getDescription()
+                            + cPrimary + " | " + "&r" + formatProgress(job));
+            }
         }
     }
 
@@ -573,6 +892,33 @@ public class MessageManager {
             return i + "th";
     }
 
+    public String formatDuration(long millis) {
+        long s = Math.max(0, millis / 1000);
+        if (s < 60)
+            return s + "s";
+        if (s < 3600)
+            return (s / 60) + "m " + (s % 60) + "s";
+        return (s / 3600) + "h " + (s % 3600 / 60) + "m";
+    }
+
+    private String formatRate(long bytes) {
+        return bytes == 0 ? "unlimited" : formatBytes(bytes) + "/s";
+    }
+
+    public String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024D);
+        if (bytes < 1024L * 1024 * 1024)
+            return String.format("%.1f MB", bytes / (1024D * 1024));
+        return String.format("%.2f GB", bytes / (1024D * 1024 * 1024));
+    }
+
+    public long toMegabytes(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+
     public <T> String listToString(List<T> c) {
         if (c == null)
             return "";
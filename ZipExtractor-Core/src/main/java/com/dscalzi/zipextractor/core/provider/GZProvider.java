@@ -19,18 +19,25 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.ParallelGZIPOutputStream;
+import com.dscalzi.zipextractor.core.util.WriteBehind;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipException;
@@ -65,17 +72,13 @@ public class GZProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
         File realDest = new File(dest.getAbsolutePath(), PATH_END.matcher(src.getName()).replaceAll(""));
-        try (GZIPInputStream xzis = new GZIPInputStream(new FileInputStream(src));
-                FileOutputStream fos = new FileOutputStream(realDest)) {
+        try (FileInputStream fis = new FileInputStream(src); WriteBehind io = WriteBehind.open()) {
             if (log)
                 mm.info("Extracting : " + src.getAbsoluteFile());
-            byte[] buf = new byte[65536];
-            int len = 0;
-            while ((len = xzis.read(buf)) > 0) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
-                fos.write(buf, 0, len);
+            try (OutputStream fos = io.create(realDest)) {
+                decompress(IOUtil.throttled(fis), fos);
             }
+            io.finish();
             if(!pipe)
                 mm.extractionComplete(sender, realDest);
             return true;
@@ -92,21 +95,47 @@ public class GZProvider implements TypeProvider {
         }
     }
     
+    @Override
+    public void extract(InputStream src, String srcName, File dest, boolean log) throws IOException {
+        File realDest = new File(dest.getAbsolutePath(), PATH_END.matcher(srcName).replaceAll(""));
+        try (WriteBehind io = WriteBehind.open()) {
+            if (log)
+                MessageManager.inst().info("Extracting : " + srcName);
+            try (OutputStream fos = io.create(realDest)) {
+                decompress(src, fos);
+            }
+            io.finish();
+        }
+    }
+
+    @Override
+    public void decompress(InputStream src, OutputStream dest) throws IOException {
+        GZIPInputStream xzis = new GZIPInputStream(src);
+        byte[] buf = new byte[65536];
+        int len = 0;
+        while ((len = xzis.read(buf)) > 0) {
+            ZServicer.checkpoint();
+            dest.write(buf, 0, len);
+            ZServicer.processed(len);
+        }
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    public boolean isFilter() {
+        return true;
+    }
+
     @Override
     public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
         final MessageManager mm = MessageManager.inst();
         mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
-        try (GZIPOutputStream xzos = new GZIPOutputStream(new FileOutputStream(dest));
-                FileInputStream fis = new FileInputStream(src)) {
-            if (log)
-                mm.info("Compressing : " + src.getAbsolutePath());
-            byte[] buf = new byte[65536];
-            int len;
-            while ((len = fis.read(buf)) > 0) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
-                xzos.write(buf, 0, len);
-            }
+        try (OutputStream fos = IOUtil.throttled(new FileOutputStream(dest))) {
+            compress(src, fos, dest, log);
             if(!pipe)
                 mm.compressionComplete(sender, dest);
             return true;
@@ -120,6 +149,36 @@ public class GZProvider implements TypeProvider {
         }
     }
     
+    @Override
+    public void compress(File src, OutputStream dest, File archive, boolean log) throws IOException {
+        try (FileInputStream fis = new FileInputStream(src)) {
+            if (log)
+                MessageManager.inst().info("Compressing : " + src.getAbsolutePath());
+            compress(IOUtil.throttled(fis), dest);
+        }
+    }
+
+    @Override
+    public void compress(InputStream src, OutputStream dest) throws IOException {
+        final int workers = ZServicer.getInstance().getWorkerThreads();
+        if (workers > 1) {
+            ParallelGZIPOutputStream pgzos = new ParallelGZIPOutputStream(dest, ZServicer.getInstance().getWorkerPool(),
+                    workers, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+            IOUtil.copy(src, pgzos, new byte[65536]);
+            pgzos.finish();
+            return;
+        }
+        GZIPOutputStream xzos = new GZIPOutputStream(dest);
+        byte[] buf = new byte[65536];
+        int len;
+        while ((len = src.read(buf)) > 0) {
+            ZServicer.checkpoint();
+            xzos.write(buf, 0, len);
+            ZServicer.processed(len);
+        }
+        xzos.finish();
+    }
+
     @Override
     public boolean validForExtraction(File src) {
         return PATH_END.matcher(src.getAbsolutePath()).find();
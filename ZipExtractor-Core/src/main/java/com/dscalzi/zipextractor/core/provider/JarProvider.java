@@ -19,19 +19,24 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.WriteBehind;
+import com.dscalzi.zipextractor.core.util.ZipCentralDirectory;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.AccessDeniedException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.regex.Pattern;
 import java.util.zip.ZipException;
@@ -49,12 +54,25 @@ public class JarProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         if(!silent)
             mm.scanningForConflics(sender);
+        ZipCentralDirectory cd = null;
+        try {
+            cd = ZipCentralDirectory.read(src);
+        } catch (IOException e) {
+            // Fall back to reading every entry header of the archive.
+        }
+        if (cd != null) {
+            try {
+                return ZipProvider.scanEntries(withoutManifest(cd.getEntriesByOffset()), dest);
+            } catch (TaskInterruptedException e) {
+                mm.taskInterruption(sender, ZTask.EXTRACT);
+                return existing;
+            }
+        }
         try (FileInputStream fis = new FileInputStream(src); JarInputStream jis = new JarInputStream(fis);) {
             JarEntry je = jis.getNextJarEntry();
 
             while (je != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest + File.separator + je.getName());
                 if (newFile.exists()) {
@@ -73,6 +91,20 @@ public class JarProvider implements TypeProvider {
         return existing;
     }
     
+    /**
+     * JarInputStream consumes the manifest (and a preceding META-INF/ entry)
+     * when it is opened, so those entries are never extracted. Drop them here as
+     * well so the scan reports the same files the extraction would write.
+     */
+    private static List<ZipCentralDirectory.Entry> withoutManifest(List<ZipCentralDirectory.Entry> entries) {
+        int skip = 0;
+        if (entries.size() > skip && entries.get(skip).getName().equalsIgnoreCase("META-INF/"))
+            skip++;
+        if (entries.size() > skip && entries.get(skip).getName().equalsIgnoreCase(JarFile.MANIFEST_NAME))
+            skip++;
+        return entries.subList(skip, entries.size());
+    }
+
     @Override
     public boolean canDetectPipedConflicts() {
         return false;
@@ -83,12 +115,11 @@ public class JarProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         byte[] buffer = new byte[1024];
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
-        try (FileInputStream fis = new FileInputStream(src); JarInputStream jis = new JarInputStream(fis);) {
+        try (FileInputStream fis = new FileInputStream(src); JarInputStream jis = new JarInputStream(IOUtil.throttled(fis)); WriteBehind io = WriteBehind.open()) {
             JarEntry je = jis.getNextJarEntry();
             
             while(je != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest, je.getName());
 
@@ -103,18 +134,22 @@ public class JarProvider implements TypeProvider {
                 }
                 if (je.isDirectory()) {
                     newFile.mkdir();
+                    ZServicer.entryDone();
                     je = jis.getNextJarEntry();
                     continue;
                 }
-                try (FileOutputStream fos = new FileOutputStream(newFile)) {
+                try (OutputStream fos = io.create(newFile)) {
                     int len;
                     while ((len = jis.read(buffer)) > 0) {
                         fos.write(buffer, 0, len);
+                        ZServicer.processed(len);
                     }
                 }
+                ZServicer.entryDone();
                 je = jis.getNextJarEntry();
             }
             jis.closeEntry();
+            io.finish();
             if(!pipe)
                 mm.extractionComplete(sender, dest);
             return true;
@@ -38,6 +38,7 @@ import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
 import com.dscalzi.zipextractor.core.util.JavaUtil;
 import com.dscalzi.zipextractor.core.util.ReflectionUtil;
+import com.dscalzi.zipextractor.core.util.StagingArea;
 
 // Pack200 deprecated in JDK 13, removed in JDK 14.
 // https://openjdk.java.net/jeps/367
@@ -71,6 +72,10 @@ public class PackProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
         File realDest = new File(dest.getAbsolutePath(), PATH_END_EXTRACT.matcher(src.getName()).replaceAll(""));
+        if (!StagingArea.check(realDest)) {
+            // Reported once the staged extraction is committed.
+            return true;
+        }
         try (JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(realDest))) {
             if (log)
                 mm.info("Extracting : " + src.getAbsoluteFile());
@@ -19,9 +19,11 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.StagingArea;
 import com.github.junrar.Archive;
 import com.github.junrar.exception.RarException;
 import com.github.junrar.exception.RarException.RarExceptionType;
@@ -55,8 +57,7 @@ public class RarProvider implements TypeProvider {
                 mm.scanningForConflics(sender);
             FileHeader fh = a.nextFileHeader();
             while (fh != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
                 File newFile = Paths.get(dest + File.separator + fh.getFileNameString()).toFile();
                 if (newFile.exists()) {
                     existing.add(fh.getFileNameString());
@@ -78,15 +79,21 @@ public class RarProvider implements TypeProvider {
         return false;
     }
 
+    @Override
+    public boolean isRandomAccess() {
+        return true;
+    }
+
     @Override
     public boolean extract(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
         final MessageManager mm = MessageManager.inst();
         try (Archive a = new Archive(new FileVolumeManager(src))) {
+            // Rar archives are not read through the servicer, progress is shown by entry.
+            ZServicer.expect(0, 0, a.getFileHeaders().size());
             FileHeader fh = a.nextFileHeader();
             mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
             while (fh != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
                 try (InputStream is = a.getInputStream(fh)) {
                     Path p = Paths.get(dest + File.separator + fh.getFileNameString());
                     File parent = p.toFile().getParentFile();
@@ -96,8 +103,10 @@ public class RarProvider implements TypeProvider {
                     try {
                         if (log)
                             mm.info("Extracting : " + p.toString());
-                        Files.copy(is, p, StandardCopyOption.REPLACE_EXISTING);
+                        if (StagingArea.check(p.toFile()))
+                            Files.copy(is, p, StandardCopyOption.REPLACE_EXISTING);
                     } catch (DirectoryNotEmptyException e) {
+                        ZServicer.entryDone();
                         fh = a.nextFileHeader();
                         continue;
                     }
@@ -108,6 +117,7 @@ public class RarProvider implements TypeProvider {
                 } catch (RarException | IOException e) {
                     e.printStackTrace();
                 }
+                ZServicer.entryDone();
                 fh = a.nextFileHeader();
             }
             if(!pipe)
@@ -19,14 +19,20 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
+import com.dscalzi.zipextractor.core.util.ExtractionCheckpoint;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.WriteBehind;
+import org.apache.tools.tar.TarBuffer;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarInputStream;
 import org.apache.tools.tar.TarOutputStream;
 
 import java.io.*;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -35,6 +41,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class TarProvider implements TypeProvider {
 
@@ -52,8 +59,7 @@ public class TarProvider implements TypeProvider {
             TarEntry te = tis.getNextEntry();
 
             while (te != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest + File.separator + te.getName());
                 if (newFile.exists()) {
@@ -78,16 +84,61 @@ public class TarProvider implements TypeProvider {
     @Override
     public boolean extract(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
         final MessageManager mm = MessageManager.inst();
-        byte[] buffer = new byte[1024];
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
-        try (FileInputStream fis = new FileInputStream(src); TarInputStream tis = new TarInputStream(fis)) {
-            TarEntry te = tis.getNextEntry();
+        try (FileInputStream fis = new FileInputStream(src); ExtractionCheckpoint cp = ExtractionCheckpoint.open(src, dest)) {
+            if (cp.getResumable() > 0)
+                mm.resumingExtraction(sender, src.getName(), cp.getResumable());
+            // Continue right after the last entry which is still intact.
+            final long offset = cp.getResumeOffset();
+            fis.getChannel().position(offset);
+            // Records are read one at a time so that the offset of every header is known.
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(IOUtil.throttled(fis), IOUtil.BUFFER_SIZE), offset);
+            extract(new TarInputStream(counter, TarBuffer.DEFAULT_RCDSIZE), counter, cp, dest, log);
+            cp.complete();
+            if(!pipe)
+                mm.extractionComplete(sender, dest);
+            return true;
+        } catch (AccessDeniedException e) {
+            ExtractionCheckpoint.discard(src, dest);
+            mm.fileAccessDenied(sender, ZTask.EXTRACT, e.getMessage());
+            return false;
+        } catch (TaskInterruptedException | ClosedByInterruptException e) {
+            mm.taskInterruption(sender, ZTask.EXTRACT);
+            return false;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            ExtractionCheckpoint.discard(src, dest);
+            mm.genericOperationError(sender, src, ZTask.EXTRACT);
+            return false;
+        }
+    }
+
+    @Override
+    public void extract(InputStream src, String srcName, File dest, boolean log) throws IOException {
+        extract(new TarInputStream(src), null, null, dest, log);
+    }
+
+    /**
+     * Extract the entries of an archive, skipping those an earlier run already
+     * wrote if there is a checkpoint. The counter gives the offset in the
+     * archive at which the next header starts.
+     */
+    private void extract(TarInputStream tis, CountingInputStream counter, ExtractionCheckpoint cp, File dest, boolean log) throws IOException {
+        final MessageManager mm = MessageManager.inst();
+        byte[] buffer = new byte[1024];
+        final CRC32 crc = new CRC32();
+        TarEntry te = tis.getNextEntry();
 
+        try (WriteBehind io = WriteBehind.open()) {
             while (te != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest + File.separator + te.getName());
+                if (cp != null && cp.isDone(te.getName())) {
+                    ZServicer.entryDone();
+                    te = tis.getNextEntry();
+                    continue;
+                }
                 if (log)
                     mm.info("Extracting : " + newFile.getAbsoluteFile());
                 File parent = newFile.getParentFile();
@@ -97,69 +148,97 @@ public class TarProvider implements TypeProvider {
                 if (te.isDirectory()) {
                     //noinspection ResultOfMethodCallIgnored
                     newFile.mkdir();
+                    if (cp != null)
+                        cp.done(te.getName(), -1, 0, counter.getCount());
+                    ZServicer.entryDone();
                     te = tis.getNextEntry();
                     continue;
                 }
-                try (FileOutputStream fos = new FileOutputStream(newFile)) {
+                if (cp != null)
+                    cp.begin(te.getName());
+                crc.reset();
+                long size = 0;
+                try (OutputStream fos = io.create(newFile)) {
                     int len;
                     while ((len = tis.read(buffer)) > 0) {
                         fos.write(buffer, 0, len);
+                        crc.update(buffer, 0, len);
+                        size += len;
+                        ZServicer.processed(len);
                     }
                 }
+                if (cp != null)
+                    cp.done(te.getName(), size, crc.getValue(), counter.getCount());
+                ZServicer.entryDone();
                 te = tis.getNextEntry();
             }
+            io.finish();
+        }
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
+        final MessageManager mm = MessageManager.inst();
+        mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
+        try (OutputStream os = IOUtil.throttled(Files.newOutputStream(dest.toPath()))) {
+            compress(src, os, dest, log);
             if(!pipe)
-                mm.extractionComplete(sender, dest);
+                mm.compressionComplete(sender, dest);
             return true;
         } catch (AccessDeniedException e) {
-            mm.fileAccessDenied(sender, ZTask.EXTRACT, e.getMessage());
+            mm.fileAccessDenied(sender, ZTask.COMPRESS, e.getMessage());
             return false;
         } catch (TaskInterruptedException e) {
-            mm.taskInterruption(sender, ZTask.EXTRACT);
+            mm.taskInterruption(sender, ZTask.COMPRESS);
             return false;
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            mm.genericOperationError(sender, src, ZTask.EXTRACT);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            mm.genericOperationError(sender, src, ZTask.COMPRESS);
             return false;
         }
     }
 
     @Override
-    public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
+    public void compress(File src, OutputStream dest, File archive, boolean log) throws IOException {
         final MessageManager mm = MessageManager.inst();
-        mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
-        try (OutputStream os = Files.newOutputStream(dest.toPath()); TarOutputStream ts = new TarOutputStream(os); Stream<Path> pathWalk = Files.walk(src.toPath())) {
+        TarOutputStream ts = new TarOutputStream(dest);
+        final byte[] buffer = new byte[IOUtil.BUFFER_SIZE];
+        try (Stream<Path> pathWalk = Files.walk(src.toPath())) {
             pathWalk.filter(path -> !path.toFile().isDirectory()).forEach(path -> {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
                 // Prevent recursive compressions
-                if (path.equals(dest.toPath()))
+                if (path.equals(archive.toPath()))
                     return;
                 TarEntry tarEntry = new TarEntry(path.toFile());
+                InputStream is;
                 try {
+                    is = IOUtil.throttled(Files.newInputStream(path));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+                try (InputStream fis = is) {
                     if (log)
                         mm.info("Compressing : " + tarEntry.getName());
                     ts.putNextEntry(tarEntry);
-                    ts.write(Files.readAllBytes(path));
+                    // The header already holds the size, never write past it.
+                    IOUtil.copy(fis, ts, tarEntry.getSize(), buffer);
                     ts.closeEntry();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    ZServicer.entryDone();
+                } catch (IOException e) {
+                    // The entry could not be completed, stop the walk.
+                    throw new UncheckedIOException(e);
                 }
             });
-            if(!pipe)
-                mm.compressionComplete(sender, dest);
-            return true;
-        } catch (AccessDeniedException e) {
-            mm.fileAccessDenied(sender, ZTask.COMPRESS, e.getMessage());
-            return false;
-        } catch (TaskInterruptedException e) {
-            mm.taskInterruption(sender, ZTask.COMPRESS);
-            return false;
-        } catch (Throwable e) {
-            e.printStackTrace();
-            mm.genericOperationError(sender, src, ZTask.COMPRESS);
-            return false;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+        ts.finish();
     }
 
     @Override
@@ -188,4 +267,45 @@ public class TarProvider implements TypeProvider {
         return SUPPORTED;
     }
 
+    /**
+     * Counts the bytes read from the archive, starting from an offset.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream in, long offset) {
+            super(in);
+            this.count = offset;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+    }
+
 }
@@ -19,9 +19,18 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
+import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
 
 /**
  * The TypeProvider Interface.
@@ -114,6 +123,156 @@ public interface TypeProvider {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Extracts the source stream into the destination directory. Unlike
+     * {@link #extract(ICommandSender, File, File, boolean, boolean)}, errors are
+     * not relayed to the user but thrown to the caller. The source stream is not
+     * closed by this method.
+     * 
+     * Must be implemented if {@link TypeProvider#isStreamable()} returns true.
+     * 
+     * @param src
+     *            The stream to be extracted.
+     * @param srcName
+     *            The file name of the stream's content, ex. world.tar
+     * @param dest
+     *            The destination root for extracted files.
+     * @param log
+     *            Whether or not to log the progress.
+     * @throws IOException
+     *             If the stream could not be extracted.
+     */
+    default void extract(InputStream src, String srcName, File dest, boolean log) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Decompresses the source stream into the destination stream. Neither stream
+     * is closed by this method.
+     * 
+     * Must be implemented if {@link TypeProvider#isFilter()} returns true.
+     * 
+     * @param src
+     *            The stream to be decompressed.
+     * @param dest
+     *            The stream the decompressed content is written to.
+     * @throws IOException
+     *             If the stream could not be decompressed.
+     */
+    default void decompress(InputStream src, OutputStream dest) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Compresses the source file/directory into the destination stream. Unlike
+     * {@link #compress(ICommandSender, File, File, boolean, boolean)}, errors are
+     * not relayed to the user but thrown to the caller. The destination stream is
+     * not closed by this method.
+     * 
+     * Must be implemented if {@link TypeProvider#isStreamable()} returns true.
+     * 
+     * @param src
+     *            The source file/directory to be compressed.
+     * @param dest
+     *            The stream the compressed content is written to.
+     * @param archive
+     *            The file the stream ultimately ends up in. It must not be
+     *            compressed into itself.
+     * @param log
+     *            Whether or not to log the progress.
+     * @throws IOException
+     *             If the source could not be compressed.
+     */
+    default void compress(File src, OutputStream dest, File archive, boolean log) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Compresses the source stream into the destination stream. Neither stream
+     * is closed by this method.
+     * 
+     * Must be implemented if {@link TypeProvider#isFilter()} returns true.
+     * 
+     * @param src
+     *            The stream to be compressed.
+     * @param dest
+     *            The stream the compressed content is written to.
+     * @throws IOException
+     *             If the stream could not be compressed.
+     */
+    default void compress(InputStream src, OutputStream dest) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Channel variant of {@link #extract(InputStream, String, File, boolean)}.
+     * Random access providers should override this to make use of a seekable
+     * source, such as a {@link java.nio.channels.FileChannel FileChannel}.
+     * 
+     * @param src
+     *            The channel to be extracted.
+     * @param srcName
+     *            The file name of the channel's content, ex. world.zip
+     * @param dest
+     *            The destination root for extracted files.
+     * @param log
+     *            Whether or not to log the progress.
+     * @throws IOException
+     *             If the channel could not be extracted.
+     */
+    default void extract(ReadableByteChannel src, String srcName, File dest, boolean log) throws IOException {
+        InputStream in = Channels.newInputStream(src);
+        extract(src instanceof FileChannel ? IOUtil.throttled(in) : in, srcName, dest, log);
+    }
+
+    /**
+     * Channel variant of {@link #decompress(InputStream, OutputStream)}.
+     * 
+     * @param src
+     *            The channel to be decompressed.
+     * @param dest
+     *            The channel the decompressed content is written to.
+     * @throws IOException
+     *             If the channel could not be decompressed.
+     */
+    default void decompress(ReadableByteChannel src, WritableByteChannel dest) throws IOException {
+        InputStream in = Channels.newInputStream(src);
+        decompress(src instanceof FileChannel ? IOUtil.throttled(in) : in, Channels.newOutputStream(dest));
+    }
+
+    /**
+     * Channel variant of {@link #compress(File, OutputStream, File, boolean)}.
+     * 
+     * @param src
+     *            The source file/directory to be compressed.
+     * @param dest
+     *            The channel the compressed content is written to.
+     * @param archive
+     *            The file the channel ultimately ends up in. It must not be
+     *            compressed into itself.
+     * @param log
+     *            Whether or not to log the progress.
+     * @throws IOException
+     *             If the source could not be compressed.
+     */
+    default void compress(File src, WritableByteChannel dest, File archive, boolean log) throws IOException {
+        compress(src, Channels.newOutputStream(dest), archive, log);
+    }
+
+    /**
+     * Channel variant of {@link #compress(InputStream, OutputStream)}.
+     * 
+     * @param src
+     *            The channel to be compressed.
+     * @param dest
+     *            The channel the compressed content is written to.
+     * @throws IOException
+     *             If the channel could not be compressed.
+     */
+    default void compress(ReadableByteChannel src, WritableByteChannel dest) throws IOException {
+        compress(Channels.newInputStream(src), Channels.newOutputStream(dest));
+    }
+
     /**
      * Returns if the given source file can be extracted by this provider.
      * Implementations usually check the extension of the file.
@@ -179,6 +338,60 @@ public interface TypeProvider {
      */
     boolean canDetectPipedConflicts();
 
+    /**
+     * Returns whether or not this provider can extract from a stream and compress
+     * into one, see {@link #extract(InputStream, String, File, boolean)} and
+     * {@link #compress(File, OutputStream, File, boolean)}. Streamable providers
+     * can be fed directly by the previous stage of a piped extraction, and can
+     * directly feed the next stage of a piped compression.
+     * 
+     * @return Whether or not this provider can extract from and compress to a stream.
+     */
+    default boolean isStreamable() { return false; }
+
+    /**
+     * Returns whether or not this provider decompresses its source into the
+     * content of a single file, see {@link #decompress(InputStream, OutputStream)}
+     * and {@link #compress(InputStream, OutputStream)}. Only filters can feed the
+     * next stage of a piped extraction, or be fed by a piped compression.
+     * 
+     * @return Whether or not this provider is a filter.
+     */
+    default boolean isFilter() { return false; }
+
+    /**
+     * Returns whether or not this provider benefits from random access to its
+     * source, for example to read an index stored at the end of the file. Such
+     * providers should be given a file or a seekable channel rather than a
+     * stream whenever possible.
+     * 
+     * @return Whether or not this provider benefits from random access.
+     */
+    default boolean isRandomAccess() { return false; }
+
+    /**
+     * Returns whether or not this provider can spread the work of a single
+     * archive over the shared worker pool. This is only done when the source
+     * can be accessed randomly.
+     * 
+     * @return Whether or not this provider can process an archive in parallel.
+     */
+    default boolean isParallelizable() { return false; }
+
+    /**
+     * Estimate the memory an operation of this provider will use beyond the
+     * buffers every operation needs. The source of an extraction may not exist
+     * yet if it is the output of an earlier operation. Tasks are held back while
+     * their estimate does not fit in the global memory budget.
+     * 
+     * @param src
+     *            The file to be extracted or compressed.
+     * @param task
+     *            The type of the operation.
+     * @return The estimated memory usage in bytes.
+     */
+    default long estimateMemoryUsage(File src, ZTask task) { return 0; }
+
     /**
      * Returns whether or not this provider is supported on the current runtime environment.
      *
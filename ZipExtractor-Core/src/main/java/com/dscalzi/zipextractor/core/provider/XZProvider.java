@@ -19,10 +19,18 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.ParallelXZOutputStream;
+import com.dscalzi.zipextractor.core.util.SeekableChannelInputStream;
+import com.dscalzi.zipextractor.core.util.WriteBehind;
 import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.MemoryLimitException;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.UnsupportedOptionsException;
 import org.tukaani.xz.XZFormatException;
 import org.tukaani.xz.XZInputStream;
 import org.tukaani.xz.XZOutputStream;
@@ -31,9 +39,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
 public class XZProvider implements TypeProvider {
@@ -42,6 +65,36 @@ public class XZProvider implements TypeProvider {
     public static final Pattern PATH_END = Pattern.compile("\\.xz$");
     protected static final List<String> SUPPORTED_EXTRACT = new ArrayList<>(Collections.singletonList("xz"));
     protected static final List<String> SUPPORTED_COMPRESS = new ArrayList<>(Collections.singletonList("non-directory"));
+    // Blocks larger than this are decoded sequentially rather than held in memory.
+    protected static final long MAX_PARALLEL_BLOCK = 64L * 1024 * 1024;
+
+    private static volatile int preset = LZMA2Options.PRESET_DEFAULT;
+    private static volatile int dictSize = 0;
+
+    /**
+     * Set the options new compressions are made with.
+     * 
+     * @param preset
+     *            The compression preset, from 0 to 9.
+     * @param dictSize
+     *            The dictionary size in bytes, or zero to use the preset's.
+     */
+    public static void setOptions(int preset, int dictSize) {
+        XZProvider.preset = Math.min(Math.max(preset, LZMA2Options.PRESET_MIN), LZMA2Options.PRESET_MAX);
+        XZProvider.dictSize = dictSize <= 0 ? 0 : Math.min(Math.max(dictSize, LZMA2Options.DICT_SIZE_MIN), LZMA2Options.DICT_SIZE_MAX);
+    }
+
+    protected static LZMA2Options createOptions() {
+        try {
+            LZMA2Options options = new LZMA2Options(preset);
+            if (dictSize > 0)
+                options.setDictSize(dictSize);
+            return options;
+        } catch (UnsupportedOptionsException e) {
+            // Both values are clamped to their valid ranges.
+            throw new IllegalStateException(e);
+        }
+    }
 
     @Override
     public List<String> scanForExtractionConflicts(ICommandSender sender, File src, File dest, boolean silent) {
@@ -66,17 +119,13 @@ public class XZProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
         File realDest = new File(dest.getAbsolutePath(), PATH_END.matcher(src.getName()).replaceAll(""));
-        try (XZInputStream xzis = new XZInputStream(new FileInputStream(src));
-                FileOutputStream fos = new FileOutputStream(realDest)) {
+        try (FileInputStream fis = new FileInputStream(src); WriteBehind io = WriteBehind.open()) {
             if (log)
                 mm.info("Extracting : " + src.getAbsoluteFile());
-            byte[] buf = new byte[65536];
-            int len = 0;
-            while ((len = xzis.read(buf)) > 0) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
-                fos.write(buf, 0, len);
+            try (OutputStream fos = io.create(realDest)) {
+                decompress(fis.getChannel(), Channels.newChannel(fos));
             }
+            io.finish();
             if(!pipe)
                 mm.extractionComplete(sender, realDest);
             return true;
@@ -93,21 +142,204 @@ public class XZProvider implements TypeProvider {
         }
     }
 
+    @Override
+    public void extract(InputStream src, String srcName, File dest, boolean log) throws IOException {
+        File realDest = new File(dest.getAbsolutePath(), PATH_END.matcher(srcName).replaceAll(""));
+        try (WriteBehind io = WriteBehind.open()) {
+            if (log)
+                MessageManager.inst().info("Extracting : " + srcName);
+            try (OutputStream fos = io.create(realDest)) {
+                decompress(src, fos);
+            }
+            io.finish();
+        }
+    }
+
+    @Override
+    public void decompress(ReadableByteChannel src, WritableByteChannel dest) throws IOException {
+        if (ZServicer.getInstance().getWorkerThreads() > 1 && src instanceof FileChannel) {
+            FileChannel ch = (FileChannel) src;
+            SeekableXZInputStream index = new SeekableXZInputStream(new SeekableChannelInputStream(ch));
+            if (index.getBlockCount() > 1 && index.getLargestBlockSize() <= MAX_PARALLEL_BLOCK) {
+                // As many workers as the memory estimate of the task allowed for.
+                int workers = fitWorkers(index.getIndexMemoryUsage() * 1024L, decoderMemoryUsage(ch) + index.getLargestBlockSize());
+                if (workers > 1) {
+                    decompressParallel(ch, index, dest, workers);
+                    return;
+                }
+            }
+        }
+        InputStream in = Channels.newInputStream(src);
+        decompress(src instanceof FileChannel ? IOUtil.throttled(in) : in, Channels.newOutputStream(dest));
+    }
+
+    /**
+     * Decode the blocks of a multi-block .xz file on the worker pool, writing
+     * them out in order. At most one block per worker is held in memory, and the
+     * calling thread decodes the oldest block itself if no worker has yet.
+     * Readers are handed from block to block, so the index of the file is only
+     * parsed once for every block decoded at the same time.
+     */
+    private void decompressParallel(FileChannel ch, SeekableXZInputStream index, WritableByteChannel dest, int workers) throws IOException {
+        final ExecutorService pool = ZServicer.getInstance().getWorkerPool();
+        final Deque<FutureTask<byte[]>> inFlight = new ArrayDeque<>();
+        final Queue<SeekableXZInputStream> readers = new ConcurrentLinkedQueue<>();
+        final int blocks = index.getBlockCount();
+        ZServicer.expect(0, index.length(), 0);
+        try {
+            for (int i = 0, done = 0; i < blocks || !inFlight.isEmpty(); done++) {
+                while (i < blocks && inFlight.size() < workers) {
+                    final int block = i++;
+                    FutureTask<byte[]> task = new FutureTask<>(() -> decodeBlock(ch, readers, block));
+                    inFlight.add(task);
+                    try {
+                        pool.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // The pool is shutting down, this thread will run it.
+                    }
+                }
+                FutureTask<byte[]> head = inFlight.poll();
+                head.run();
+                // Workers read ahead by a block at most, so holding back here
+                // keeps them to the read limits as well.
+                ZServicer.throttleRead(index.getBlockCompSize(done));
+                ByteBuffer buf = ByteBuffer.wrap(head.get());
+                while (buf.hasRemaining())
+                    dest.write(buf);
+                ZServicer.processed(buf.capacity());
+                ZServicer.checkpoint();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new TaskInterruptedException();
+        } finally {
+            for (FutureTask<byte[]> t : inFlight)
+                t.cancel(true);
+        }
+    }
+
+    private static byte[] decodeBlock(FileChannel ch, Queue<SeekableXZInputStream> readers, int block) throws IOException {
+        SeekableXZInputStream in = readers.poll();
+        if (in == null)
+            in = new SeekableXZInputStream(new SeekableChannelInputStream(ch));
+        in.seekToBlock(block);
+        byte[] data = new byte[(int) in.getBlockSize(block)];
+        int off = 0;
+        while (off < data.length) {
+            int n = in.read(data, off, data.length - off);
+            if (n < 0)
+                throw new IOException("Block " + block + " ended early");
+            off += n;
+        }
+        // Only a reader which decoded its block cleanly is used again.
+        readers.add(in);
+        return data;
+    }
+
+    @Override
+    public void decompress(InputStream src, OutputStream dest) throws IOException {
+        XZInputStream xzis = new XZInputStream(src);
+        byte[] buf = new byte[65536];
+        int len = 0;
+        while ((len = xzis.read(buf)) > 0) {
+            ZServicer.checkpoint();
+            dest.write(buf, 0, len);
+            ZServicer.processed(len);
+        }
+    }
+
+    @Override
+    public long estimateMemoryUsage(File src, ZTask task) {
+        if (task == ZTask.COMPRESS) {
+            LZMA2Options options = createOptions();
+            long perWorker = parallelEncoderUsage(options);
+            int workers = fitWorkers(0, perWorker);
+            if (workers < 2)
+                return options.getEncoderMemoryUsage() * 1024L;
+            return workers * perWorker;
+        }
+        if (!src.isFile()) {
+            // The output of an earlier operation, assume it was made with our options.
+            return createOptions().getDecoderMemoryUsage() * 1024L;
+        }
+        try (FileInputStream fis = new FileInputStream(src)) {
+            FileChannel ch = fis.getChannel();
+            SeekableXZInputStream index = new SeekableXZInputStream(new SeekableChannelInputStream(ch));
+            long decoder = decoderMemoryUsage(ch);
+            long usage = index.getIndexMemoryUsage() * 1024L;
+            int workers = fitWorkers(usage, decoder + index.getLargestBlockSize());
+            if (workers > 1 && index.getBlockCount() > 1 && index.getLargestBlockSize() <= MAX_PARALLEL_BLOCK)
+                return usage + workers * (decoder + index.getLargestBlockSize());
+            return usage + decoder;
+        } catch (IOException e) {
+            // Not a valid file, the extraction itself will report it.
+            return 0;
+        }
+    }
+
+    /**
+     * The memory used by each worker of a parallel compression. Each in flight
+     * block holds its input and its encoded output.
+     */
+    private static long parallelEncoderUsage(LZMA2Options options) {
+        return options.getEncoderMemoryUsage() * 1024L + 2L * ParallelXZOutputStream.defaultBlockSize(options);
+    }
+
+    /**
+     * The number of workers a parallel operation can use: as many as are
+     * configured, but no more than fit in the memory budget. One means the
+     * operation should run sequentially, so a budget too small for the
+     * parallel operation does not turn it away.
+     *
+     * @param shared
+     *            The memory used by the operation no matter how many workers
+     *            it has.
+     * @param perWorker
+     *            The memory used by each worker.
+     */
+    private static int fitWorkers(long shared, long perWorker) {
+        int workers = ZServicer.getInstance().getWorkerThreads();
+        long limit = ZServicer.getInstance().getMemoryBudget().getLimit();
+        if (limit > 0 && perWorker > 0)
+            workers = (int) Math.max(1, Math.min(workers, (limit - shared) / perWorker));
+        return workers;
+    }
+
+    /**
+     * Find the memory needed to decode the first block by opening it with a
+     * memory limit of zero.
+     */
+    private static long decoderMemoryUsage(FileChannel ch) throws IOException {
+        try (XZInputStream probe = new XZInputStream(new SeekableChannelInputStream(ch), 0)) {
+            probe.read();
+            return 0;
+        } catch (MemoryLimitException e) {
+            return e.getMemoryNeeded() * 1024L;
+        }
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    public boolean isFilter() {
+        return true;
+    }
+
     @Override
     public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
         final MessageManager mm = MessageManager.inst();
         mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
-        try (XZOutputStream xzos = new XZOutputStream(new FileOutputStream(dest), new LZMA2Options());
-                FileInputStream fis = new FileInputStream(src)) {
-            if (log)
-                mm.info("Compressing : " + src.getAbsolutePath());
-            byte[] buf = new byte[8*1024];
-            int len = 0;
-            while ((len = fis.read(buf)) > 0) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
-                xzos.write(buf, 0, len);
-            }
+        try (OutputStream fos = IOUtil.throttled(new FileOutputStream(dest))) {
+            compress(src, fos, dest, log);
             if(!pipe)
                 mm.compressionComplete(sender, dest);
             return true;
@@ -121,6 +353,37 @@ public class XZProvider implements TypeProvider {
         }
     }
 
+    @Override
+    public void compress(File src, OutputStream dest, File archive, boolean log) throws IOException {
+        try (FileInputStream fis = new FileInputStream(src)) {
+            if (log)
+                MessageManager.inst().info("Compressing : " + src.getAbsolutePath());
+            compress(IOUtil.throttled(fis), dest);
+        }
+    }
+
+    @Override
+    public void compress(InputStream src, OutputStream dest) throws IOException {
+        final LZMA2Options options = createOptions();
+        final int workers = fitWorkers(0, parallelEncoderUsage(options));
+        if (workers > 1) {
+            ParallelXZOutputStream pxzos = new ParallelXZOutputStream(dest, ZServicer.getInstance().getWorkerPool(),
+                    workers, options, ParallelXZOutputStream.defaultBlockSize(options));
+            IOUtil.copy(src, pxzos, new byte[65536]);
+            pxzos.finish();
+            return;
+        }
+        XZOutputStream xzos = new XZOutputStream(dest, options);
+        byte[] buf = new byte[8*1024];
+        int len = 0;
+        while ((len = src.read(buf)) > 0) {
+            ZServicer.checkpoint();
+            xzos.write(buf, 0, len);
+            ZServicer.processed(len);
+        }
+        xzos.finish();
+    }
+
     @Override
     public boolean validForExtraction(File src) {
         return PATH_END.matcher(src.getAbsolutePath()).find();
@@ -19,19 +19,48 @@
 package com.dscalzi.zipextractor.core.provider;
 
 import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
+import com.dscalzi.zipextractor.core.util.ExtractionCheckpoint;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
+import com.dscalzi.zipextractor.core.util.IOUtil;
+import com.dscalzi.zipextractor.core.util.SpillBuffer;
+import com.dscalzi.zipextractor.core.util.StagingArea;
+import com.dscalzi.zipextractor.core.util.WriteBehind;
+import com.dscalzi.zipextractor.core.util.ZipArchiveWriter;
+import com.dscalzi.zipextractor.core.util.ZipCentralDirectory;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
@@ -42,6 +71,8 @@ public class ZipProvider implements TypeProvider {
     // Shared pattern by ZipProviders
     public static final Pattern PATH_END = Pattern.compile("\\.zip$");
     protected static final List<String> SUPPORTED = new ArrayList<>(Collections.singletonList("zip"));
+    // Deflated entries larger than this are kept on disk until written.
+    private static final int SPILL_THRESHOLD = 1 << 20;
 
     @Override
     public List<String> scanForExtractionConflicts(ICommandSender sender, File src, File dest, boolean silent) {
@@ -49,12 +80,25 @@ public class ZipProvider implements TypeProvider {
         final MessageManager mm = MessageManager.inst();
         if(!silent)
             mm.scanningForConflics(sender);
+        ZipCentralDirectory cd = null;
+        try {
+            cd = ZipCentralDirectory.read(src);
+        } catch (IOException e) {
+            // Fall back to reading every entry header of the archive.
+        }
+        if (cd != null) {
+            try {
+                return scanEntries(cd.getEntriesByOffset(), dest);
+            } catch (TaskInterruptedException e) {
+                mm.taskInterruption(sender, ZTask.EXTRACT);
+                return existing;
+            }
+        }
         try (FileInputStream fis = new FileInputStream(src); ZipInputStream zis = new ZipInputStream(fis);) {
             ZipEntry ze = zis.getNextEntry();
 
             while (ze != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest + File.separator + ze.getName());
                 if (newFile.exists()) {
@@ -73,6 +117,24 @@ public class ZipProvider implements TypeProvider {
         return existing;
     }
     
+    /**
+     * Checks which of the given central directory entries already exist in the
+     * destination. Nothing is read from the archive itself, so this completes in
+     * a fraction of the time it takes to walk every entry with a ZipInputStream.
+     */
+    static List<String> scanEntries(List<ZipCentralDirectory.Entry> entries, File dest) {
+        List<String> existing = new ArrayList<>();
+        for (ZipCentralDirectory.Entry ze : entries) {
+            ZServicer.checkpoint();
+
+            File newFile = new File(dest + File.separator + ze.getName());
+            if (newFile.exists()) {
+                existing.add(ze.getName());
+            }
+        }
+        return existing;
+    }
+
     @Override
     public boolean canDetectPipedConflicts() {
         return false;
@@ -81,20 +143,83 @@ public class ZipProvider implements TypeProvider {
     @Override
     public boolean extract(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
         final MessageManager mm = MessageManager.inst();
-        byte[] buffer = new byte[1024];
         mm.startingProcess(sender, ZTask.EXTRACT, src.getName());
-        try (FileInputStream fis = new FileInputStream(src); ZipInputStream zis = new ZipInputStream(fis);) {
-            ZipEntry ze = zis.getNextEntry();
+        try (FileChannel ch = FileChannel.open(src.toPath(), StandardOpenOption.READ); ExtractionCheckpoint cp = ExtractionCheckpoint.open(src, dest)) {
+            if (cp.getResumable() > 0)
+                mm.resumingExtraction(sender, src.getName(), cp.getResumable());
+            extract(ch, src.getName(), dest, log, cp);
+            cp.complete();
+            if(!pipe)
+                mm.extractionComplete(sender, dest);
+            return true;
+        } catch (AccessDeniedException e) {
+            ExtractionCheckpoint.discard(src, dest);
+            mm.fileAccessDenied(sender, ZTask.EXTRACT, e.getMessage());
+            return false;
+        } catch(ZipException e) {
+            ExtractionCheckpoint.discard(src, dest);
+            mm.extractionFormatError(sender, src, "Zip");
+            return false;
+        } catch (TaskInterruptedException | ClosedByInterruptException e) {
+            mm.taskInterruption(sender, ZTask.EXTRACT);
+            return false;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            ExtractionCheckpoint.discard(src, dest);
+            mm.genericOperationError(sender, src, ZTask.EXTRACT);
+            return false;
+        }
+    }
+
+    @Override
+    public void extract(ReadableByteChannel src, String srcName, File dest, boolean log) throws IOException {
+        extract(src, srcName, dest, log, null);
+    }
+
+    /**
+     * Extract the archive, skipping the entries an earlier run already wrote if
+     * there is a checkpoint. Those can be anywhere in the archive, so resuming
+     * reads the entries through the central directory.
+     */
+    private void extract(ReadableByteChannel src, String srcName, File dest, boolean log, ExtractionCheckpoint cp) throws IOException {
+        final int workers = ZServicer.getInstance().getWorkerThreads();
+        if ((workers > 1 || (cp != null && cp.getResumable() > 0)) && src instanceof FileChannel) {
+            ZipCentralDirectory cd = readCentralDirectory((FileChannel) src);
+            if (cd != null) {
+                extractParallel((FileChannel) src, cd, dest, log, workers, cp);
+                return;
+            }
+        }
+        InputStream in = Channels.newInputStream(src);
+        extract(src instanceof FileChannel ? IOUtil.throttled(in) : in, srcName, dest, log, cp);
+    }
 
+    @Override
+    public void extract(InputStream src, String srcName, File dest, boolean log) throws IOException {
+        extract(src, srcName, dest, log, null);
+    }
+
+    private void extract(InputStream src, String srcName, File dest, boolean log, ExtractionCheckpoint cp) throws IOException {
+        final MessageManager mm = MessageManager.inst();
+        byte[] buffer = new byte[1024];
+        final CRC32 crc = new CRC32();
+        ZipInputStream zis = new ZipInputStream(src);
+        ZipEntry ze = zis.getNextEntry();
+
+        try (WriteBehind io = WriteBehind.open()) {
             while (ze != null) {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
 
                 File newFile = new File(dest, ze.getName());
 
                 if (!newFile.toPath().normalize().startsWith(dest.toPath().normalize())) {
                     throw new RuntimeException("Bad zip entry");
                 }
+                if (cp != null && cp.isDone(ze.getName())) {
+                    ZServicer.entryDone();
+                    ze = zis.getNextEntry();
+                    continue;
+                }
                 if (log)
                     mm.info("Extracting : " + newFile.getAbsoluteFile());
                 File parent = newFile.getParentFile();
@@ -103,77 +228,396 @@ public class ZipProvider implements TypeProvider {
                 }
                 if (ze.isDirectory()) {
                     newFile.mkdir();
+                    if (cp != null)
+                        cp.done(ze.getName(), -1, 0, -1);
+                    ZServicer.entryDone();
                     ze = zis.getNextEntry();
                     continue;
                 }
-                try (FileOutputStream fos = new FileOutputStream(newFile)) {
+                if (cp != null)
+                    cp.begin(ze.getName());
+                crc.reset();
+                long size = 0;
+                try (OutputStream fos = io.create(newFile)) {
                     int len;
                     while ((len = zis.read(buffer)) > 0) {
                         fos.write(buffer, 0, len);
+                        crc.update(buffer, 0, len);
+                        size += len;
+                        ZServicer.processed(len);
                     }
                 }
+                if (cp != null)
+                    cp.done(ze.getName(), size, crc.getValue(), -1);
+                ZServicer.entryDone();
                 ze = zis.getNextEntry();
             }
-            zis.closeEntry();
+            io.finish();
+        }
+        zis.closeEntry();
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return true;
+    }
+
+    @Override
+    public boolean isParallelizable() {
+        return true;
+    }
+
+    /**
+     * Reads the central directory of the archive if every entry can be extracted
+     * from it. Returns null otherwise, in which case the archive should be read
+     * sequentially so that any format errors are reported as usual.
+     */
+    private ZipCentralDirectory readCentralDirectory(FileChannel ch) {
+        try {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(ch);
+            for (ZipCentralDirectory.Entry e : cd.getEntries()) {
+                if (!e.isSupported())
+                    return null;
+            }
+            return cd;
+        } catch (ClosedByInterruptException e) {
+            throw new TaskInterruptedException();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the archive on several threads at once. Entries are handed out in
+     * the order of their local headers so that reads remain mostly sequential.
+     * The calling thread takes part in the extraction, so progress is made even
+     * if the worker pool is saturated by other tasks.
+     */
+    private void extractParallel(FileChannel ch, ZipCentralDirectory cd, File dest, boolean log, int workers, ExtractionCheckpoint cp) throws IOException {
+        final List<ZipCentralDirectory.Entry> entries = cd.getEntriesByOffset();
+        long size = 0;
+        for (ZipCentralDirectory.Entry e : entries)
+            size += e.getSize();
+        ZServicer.expect(0, size, entries.size());
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicBoolean abort = new AtomicBoolean();
+        final List<Future<?>> helpers = new ArrayList<>();
+        ExecutorService pool = ZServicer.getInstance().getWorkerPool();
+        try {
+            for (int i = 1; i < Math.min(workers, entries.size()); i++) {
+                helpers.add(pool.submit(ZServicer.withCurrentJob(() -> {
+                    extractEntries(ch, entries, cursor, abort, dest, log, cp);
+                    return null;
+                })));
+            }
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down, continue with the threads we have.
+        }
+        try {
+            extractEntries(ch, entries, cursor, abort, dest, log, cp);
+            for (Future<?> f : helpers) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new TaskInterruptedException();
+        } finally {
+            abort.set(true);
+            for (Future<?> f : helpers) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private void extractEntries(FileChannel ch, List<ZipCentralDirectory.Entry> entries, AtomicInteger cursor,
+            AtomicBoolean abort, File dest, boolean log, ExtractionCheckpoint cp) throws IOException {
+        final MessageManager mm = MessageManager.inst();
+        final Path destPath = dest.toPath().normalize();
+        final byte[] buffer = new byte[65536];
+        final CRC32 crc = new CRC32();
+        int i;
+        try {
+            while (!abort.get() && (i = cursor.getAndIncrement()) < entries.size()) {
+                ZServicer.checkpoint();
+
+                ZipCentralDirectory.Entry ze = entries.get(i);
+                File newFile = new File(dest, ze.getName());
+
+                if (!newFile.toPath().normalize().startsWith(destPath)) {
+                    throw new RuntimeException("Bad zip entry");
+                }
+                if (cp != null && cp.isDone(ze.getName())) {
+                    ZServicer.entryDone();
+                    continue;
+                }
+                if (log)
+                    mm.info("Extracting : " + newFile.getAbsoluteFile());
+                if (ze.isDirectory()) {
+                    Files.createDirectories(newFile.toPath());
+                    if (cp != null)
+                        cp.done(ze.getName(), -1, 0, -1);
+                    ZServicer.entryDone();
+                    continue;
+                }
+                // Other workers may be creating the same parents, which createDirectories tolerates.
+                Files.createDirectories(newFile.toPath().getParent());
+                if (!StagingArea.check(newFile)) {
+                    ZServicer.entryDone();
+                    continue;
+                }
+                if (cp != null)
+                    cp.begin(ze.getName());
+                crc.reset();
+                long size = 0;
+                try (InputStream is = ZipCentralDirectory.openEntry(ch, ze); OutputStream fos = IOUtil.throttled(new FileOutputStream(newFile))) {
+                    int len;
+                    while ((len = is.read(buffer)) > 0) {
+                        crc.update(buffer, 0, len);
+                        size += len;
+                        fos.write(buffer, 0, len);
+                        ZServicer.processed(len);
+                    }
+                }
+                if (crc.getValue() != ze.getCrc())
+                    throw new ZipException("Invalid entry CRC: " + ze.getName());
+                if (cp != null)
+                    cp.done(ze.getName(), size, crc.getValue(), -1);
+                ZServicer.entryDone();
+            }
+        } catch (Throwable e) {
+            // Stop the other workers before this failure is reported.
+            abort.set(true);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
+        final MessageManager mm = MessageManager.inst();
+        mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
+        try (OutputStream os = IOUtil.throttled(Files.newOutputStream(dest.toPath()))) {
+            final List<String> skipped = Collections.synchronizedList(new ArrayList<>());
+            compress(src, os, dest, log, skipped);
+            if (!skipped.isEmpty())
+                mm.filesSkipped(sender, ZTask.COMPRESS, skipped);
             if(!pipe)
-                mm.extractionComplete(sender, dest);
+                mm.compressionComplete(sender, dest);
             return true;
         } catch (AccessDeniedException e) {
-            mm.fileAccessDenied(sender, ZTask.EXTRACT, e.getMessage());
-            return false;
-        } catch(ZipException e) {
-            mm.extractionFormatError(sender, src, "Zip");
+            mm.fileAccessDenied(sender, ZTask.COMPRESS, e.getMessage());
             return false;
         } catch (TaskInterruptedException e) {
-            mm.taskInterruption(sender, ZTask.EXTRACT);
+            mm.taskInterruption(sender, ZTask.COMPRESS);
             return false;
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            mm.genericOperationError(sender, src, ZTask.EXTRACT);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            mm.genericOperationError(sender, src, ZTask.COMPRESS);
             return false;
         }
     }
 
     @Override
-    public boolean compress(ICommandSender sender, File src, File dest, boolean log, boolean pipe) {
+    public void compress(File src, OutputStream dest, File archive, boolean log) throws IOException {
+        final List<String> skipped = Collections.synchronizedList(new ArrayList<>());
+        compress(src, dest, archive, log, skipped);
+        for (String path : skipped) {
+            MessageManager.inst().warn("Unable to read " + path + ", it was left out of the archive.");
+        }
+    }
+
+    /**
+     * Compresses the source, adding the path of every file which could not be
+     * read to the skipped list rather than failing the whole compression.
+     */
+    private void compress(File src, OutputStream dest, File archive, boolean log, List<String> skipped) throws IOException {
+        final int workers = ZServicer.getInstance().getWorkerThreads();
+        if (workers > 1) {
+            compressParallel(src, dest, archive, log, workers, skipped);
+            return;
+        }
         final MessageManager mm = MessageManager.inst();
-        mm.startingProcess(sender, ZTask.COMPRESS, src.getName());
-        try (OutputStream os = Files.newOutputStream(dest.toPath()); ZipOutputStream zs = new ZipOutputStream(os); Stream<Path> pathWalk = Files.walk(src.toPath())) {
+        ZipOutputStream zs = new ZipOutputStream(dest);
+        final byte[] buffer = new byte[IOUtil.BUFFER_SIZE];
+        try (Stream<Path> pathWalk = Files.walk(src.toPath())) {
             Path pp = src.toPath();
             pathWalk.filter(path -> !path.toFile().isDirectory()).forEach(path -> {
-                if (Thread.interrupted())
-                    throw new TaskInterruptedException();
+                ZServicer.checkpoint();
                 // Prevent recursive compressions
-                if (path.equals(dest.toPath()))
+                if (path.equals(archive.toPath()))
                     return;
-                String sp = path.toAbsolutePath().toString().replace(pp.toAbsolutePath().toString(), "");
-                if (sp.length() > 0)
-                    sp = sp.substring(1);
-                ZipEntry zipEntry = new ZipEntry(pp.getFileName() + ((sp.length() > 0) ? (File.separator + sp) : ""));
+                ZipEntry zipEntry = new ZipEntry(entryName(pp, path));
+                InputStream is;
                 try {
+                    is = IOUtil.throttled(Files.newInputStream(path));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    skipped.add(path.toString());
+                    return;
+                }
+                try (InputStream fis = is) {
                     if (log)
                         mm.info("Compressing : " + zipEntry.toString());
                     zs.putNextEntry(zipEntry);
-                    zs.write(Files.readAllBytes(path));
+                    IOUtil.copy(fis, zs, buffer);
                     zs.closeEntry();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    ZServicer.entryDone();
+                } catch (IOException e) {
+                    // The entry could not be completed, stop the walk.
+                    throw new UncheckedIOException(e);
                 }
             });
-            if(!pipe)
-                mm.compressionComplete(sender, dest);
-            return true;
-        } catch (AccessDeniedException e) {
-            mm.fileAccessDenied(sender, ZTask.COMPRESS, e.getMessage());
-            return false;
-        } catch (TaskInterruptedException e) {
-            mm.taskInterruption(sender, ZTask.COMPRESS);
-            return false;
-        } catch (Throwable e) {
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        zs.finish();
+    }
+
+    private static String entryName(Path pp, Path path) {
+        String sp = path.toAbsolutePath().toString().replace(pp.toAbsolutePath().toString(), "");
+        if (sp.length() > 0)
+            sp = sp.substring(1);
+        return pp.getFileName() + ((sp.length() > 0) ? (File.separator + sp) : "");
+    }
+
+    /**
+     * Compresses the source on several threads at once. Workers deflate whole
+     * entries into bounded scratch buffers, which spill to temporary files next to
+     * the archive, while the calling thread writes the finished entries in walk
+     * order. At most two entries per worker are held at any time. The calling
+     * thread deflates the next entry itself if no worker has picked it up yet.
+     */
+    private void compressParallel(File src, OutputStream dest, File archive, boolean log, int workers, List<String> skipped) throws IOException {
+        final MessageManager mm = MessageManager.inst();
+        final Path pp = src.toPath();
+        final List<Path> paths;
+        try (Stream<Path> pathWalk = Files.walk(pp)) {
+            // Prevent recursive compressions
+            paths = pathWalk.filter(path -> !path.toFile().isDirectory() && !path.equals(archive.toPath()))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        final File spillDir = archive.getAbsoluteFile().getParentFile();
+        final Set<SpillBuffer> scratch = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean abort = new AtomicBoolean();
+        final ExecutorService pool = ZServicer.getInstance().getWorkerPool();
+        final Deque<FutureTask<DeflatedEntry>> window = new ArrayDeque<>();
+        final ZipArchiveWriter zw = new ZipArchiveWriter(dest);
+        final byte[] buffer = new byte[IOUtil.BUFFER_SIZE];
+        int next = 0;
+        try {
+            while (next < paths.size() || !window.isEmpty()) {
+                ZServicer.checkpoint();
+                while (next < paths.size() && window.size() < workers * 2) {
+                    final Path path = paths.get(next++);
+                    FutureTask<DeflatedEntry> task = new FutureTask<>(ZServicer.withCurrentJob(() -> deflateEntry(path, entryName(pp, path), spillDir, scratch, abort, skipped)));
+                    window.add(task);
+                    try {
+                        pool.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // The pool is shutting down, this thread will run it.
+                    }
+                }
+                FutureTask<DeflatedEntry> head = window.poll();
+                head.run();
+                DeflatedEntry de;
+                try {
+                    de = head.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                } catch (InterruptedException e) {
+                    throw new TaskInterruptedException();
+                }
+                if (de == null)
+                    continue;
+                try (InputStream is = de.data.openInputStream()) {
+                    if (log)
+                        mm.info("Compressing : " + de.name);
+                    zw.putEntry(de.name, de.time, ZipCentralDirectory.DEFLATED, de.crc, de.size, is, de.data.size(), buffer);
+                    ZServicer.entryDone();
+                } finally {
+                    scratch.remove(de.data);
+                    de.data.dispose();
+                }
+            }
+            zw.finish();
+        } finally {
+            abort.set(true);
+            for (FutureTask<DeflatedEntry> t : window) {
+                t.cancel(true);
+            }
+            scratch.forEach(SpillBuffer::dispose);
+        }
+    }
+
+    /**
+     * Deflates a single file into a scratch buffer. Returns null if the file
+     * could not be read, in which case it is added to the skipped list.
+     */
+    private static DeflatedEntry deflateEntry(Path path, String name, File spillDir, Set<SpillBuffer> scratch, AtomicBoolean abort, List<String> skipped) throws IOException {
+        final long time;
+        final InputStream is;
+        try {
+            time = Files.getLastModifiedTime(path).toMillis();
+            is = IOUtil.throttled(Files.newInputStream(path));
+        } catch (Exception e) {
             e.printStackTrace();
-            mm.genericOperationError(sender, src, ZTask.COMPRESS);
-            return false;
+            skipped.add(path.toString());
+            return null;
+        }
+        final SpillBuffer data = new SpillBuffer(SPILL_THRESHOLD, spillDir);
+        scratch.add(data);
+        final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+        try (CheckedInputStream cis = new CheckedInputStream(is, crc)) {
+            DeflaterOutputStream dos = new DeflaterOutputStream(data, def, IOUtil.BUFFER_SIZE);
+            long size = IOUtil.copy(cis, dos, new byte[IOUtil.BUFFER_SIZE]);
+            dos.finish();
+            data.close();
+            return new DeflatedEntry(name, time, crc.getValue(), size, data);
+        } finally {
+            def.end();
+            // The task may have outlived an aborted compression.
+            if (abort.get()) {
+                scratch.remove(data);
+                data.dispose();
+            }
+        }
+    }
+
+    private static class DeflatedEntry {
+
+        private final String name;
+        private final long time;
+        private final long crc;
+        private final long size;
+        private final SpillBuffer data;
+
+        private DeflatedEntry(String name, long time, long crc, long size, SpillBuffer data) {
+            this.name = name;
+            this.time = time;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
         }
+
     }
 
     @Override
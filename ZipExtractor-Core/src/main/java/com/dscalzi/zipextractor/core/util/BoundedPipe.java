@@ -0,0 +1,185 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+
+/**
+ * A fixed size in-memory buffer connecting a writing thread to a reading
+ * thread. Unlike {@link java.io.PipedInputStream PipedInputStream}, the pipe
+ * does not track the threads using it, so either end may be handed between
+ * threads freely.
+ *
+ * Writers block while the buffer is full and readers block while it is empty.
+ * If a blocked thread is interrupted, a
+ * {@link com.dscalzi.zipextractor.core.TaskInterruptedException TaskInterruptedException}
+ * is thrown.
+ */
+public class BoundedPipe {
+
+    private final byte[] buf;
+    private int head;
+    private int count;
+
+    private boolean writeClosed;
+    private boolean readClosed;
+    private Throwable failure;
+
+    private final InputStream source = new Source();
+    private final OutputStream sink = new Sink();
+
+    public BoundedPipe(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    /**
+     * @return The end of the pipe to read from.
+     */
+    public InputStream getInputStream() {
+        return source;
+    }
+
+    /**
+     * @return The end of the pipe to write to.
+     */
+    public OutputStream getOutputStream() {
+        return sink;
+    }
+
+    /**
+     * Break the pipe. Any blocked or future read or write will throw an
+     * IOException caused by the given failure.
+     *
+     * @param cause
+     *            The reason the pipe was broken.
+     */
+    public synchronized void fail(Throwable cause) {
+        if (failure == null)
+            failure = cause;
+        notifyAll();
+    }
+
+    /**
+     * @return Whether or not the reading end has been closed.
+     */
+    public synchronized boolean isReadClosed() {
+        return readClosed;
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new TaskInterruptedException();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Pipe broken", failure);
+    }
+
+    private class Source extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            synchronized (BoundedPipe.this) {
+                while (count == 0 && !writeClosed && !readClosed && failure == null)
+                    await();
+                checkFailure();
+                if (readClosed)
+                    throw new IOException("Pipe closed");
+                if (count == 0)
+                    return -1;
+                int n = Math.min(len, Math.min(count, buf.length - head));
+                System.arraycopy(buf, head, b, off, n);
+                head = (head + n) % buf.length;
+                count -= n;
+                BoundedPipe.this.notifyAll();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (BoundedPipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (BoundedPipe.this) {
+                readClosed = true;
+                BoundedPipe.this.notifyAll();
+            }
+        }
+
+    }
+
+    private class Sink extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (BoundedPipe.this) {
+                while (len > 0) {
+                    while (count == buf.length && !readClosed && failure == null)
+                        await();
+                    checkFailure();
+                    if (readClosed || writeClosed)
+                        throw new IOException("Pipe closed");
+                    int tail = (head + count) % buf.length;
+                    int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+                    System.arraycopy(b, off, buf, tail, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    BoundedPipe.this.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (BoundedPipe.this) {
+                writeClosed = true;
+                BoundedPipe.this.notifyAll();
+            }
+        }
+
+    }
+
+}
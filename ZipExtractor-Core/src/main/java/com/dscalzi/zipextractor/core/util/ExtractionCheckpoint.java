@@ -0,0 +1,311 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A record of the entries an extraction has written, kept in the destination
+ * while it runs. If the extraction is cut short, by a crash or a forced
+ * termination, extracting the same archive to the same destination again
+ * resumes it: entries whose files still have the recorded size and CRC are
+ * skipped, and the files it had started to write are not reported as
+ * conflicts. The record is deleted once the extraction completes.
+ *
+ * Every line holds its own checksum, so a line torn by a crash is ignored.
+ * Lines are not synced to the disk, the record survives the server crashing
+ * but not necessarily the machine losing power.
+ */
+public class ExtractionCheckpoint implements Closeable {
+
+    public static final String PREFIX = ".zipextractor-checkpoint-";
+
+    private static final char HEADER = 'H';
+    private static final char BEGUN = 'B';
+    private static final char DONE = 'D';
+
+    private final File file;
+    private final File dest;
+    private FileChannel out;
+
+    // Entries recorded by the run which was cut short, in the order they were done.
+    private final Map<String, Entry> done = new LinkedHashMap<>();
+    private final Set<String> claimed = new HashSet<>();
+    private final Map<String, Boolean> verified = new ConcurrentHashMap<>();
+
+    private ExtractionCheckpoint(File file, File dest) {
+        this.file = file;
+        this.dest = dest;
+    }
+
+    private static File fileFor(File src, File dest) {
+        CRC32 crc = new CRC32();
+        crc.update(src.getAbsoluteFile().toPath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        return new File(dest, PREFIX + Long.toHexString(crc.getValue()));
+    }
+
+    private static String header(File src) {
+        return HEADER + " " + src.length() + " " + src.lastModified();
+    }
+
+    /**
+     * Open the checkpoint of an extraction, reading what an earlier run of the
+     * same extraction left behind. If the archive has changed since, the old
+     * record is discarded.
+     *
+     * @param src
+     *            The archive.
+     * @param dest
+     *            The destination directory.
+     * @return The checkpoint.
+     * @throws IOException
+     *             If the checkpoint cannot be written.
+     */
+    public static ExtractionCheckpoint open(File src, File dest) throws IOException {
+        Files.createDirectories(dest.toPath());
+        ExtractionCheckpoint cp = read(src, dest);
+        boolean fresh = cp.done.isEmpty() && cp.claimed.isEmpty();
+        if (fresh) {
+            cp.out = FileChannel.open(cp.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            cp.append(header(src));
+        } else {
+            cp.out = FileChannel.open(cp.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return cp;
+    }
+
+    /**
+     * @param src
+     *            The archive.
+     * @param dest
+     *            The destination directory.
+     * @return The names of the entries an earlier run of the extraction began
+     *         to write, which are not conflicts.
+     */
+    public static Set<String> claimed(File src, File dest) {
+        return Collections.unmodifiableSet(read(src, dest).claimed);
+    }
+
+    /**
+     * Delete the checkpoint of an extraction which failed for good, so that its
+     * files are reported as conflicts instead of being resumed.
+     *
+     * @param src
+     *            The archive.
+     * @param dest
+     *            The destination directory.
+     */
+    public static void discard(File src, File dest) {
+        fileFor(src, dest).delete();
+    }
+
+    private static ExtractionCheckpoint read(File src, File dest) {
+        ExtractionCheckpoint cp = new ExtractionCheckpoint(fileFor(src, dest), dest);
+        if (!cp.file.isFile())
+            return cp;
+        try (BufferedReader r = Files.newBufferedReader(cp.file.toPath(), StandardCharsets.UTF_8)) {
+            String line = r.readLine();
+            if (line == null || !header(src).equals(unwrap(line)))
+                return cp;
+            while ((line = r.readLine()) != null) {
+                String record = unwrap(line);
+                if (record == null || record.length() < 2)
+                    continue;
+                if (record.charAt(0) == BEGUN) {
+                    cp.claimed.add(record.substring(2));
+                } else if (record.charAt(0) == DONE) {
+                    String[] f = record.split(" ", 5);
+                    if (f.length < 5)
+                        continue;
+                    try {
+                        cp.done.put(f[4], new Entry(Long.parseLong(f[1]), Long.parseLong(f[2], 16), Long.parseLong(f[3])));
+                        cp.claimed.add(f[4]);
+                    } catch (NumberFormatException e) {
+                        // Skip it.
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Start over.
+            cp.done.clear();
+            cp.claimed.clear();
+        }
+        return cp;
+    }
+
+    /**
+     * @return The number of entries recorded as done by an earlier run.
+     */
+    public int getResumable() {
+        return done.size();
+    }
+
+    /**
+     * Check whether an entry was written by an earlier run and its file is
+     * still intact.
+     *
+     * @param name
+     *            The name of the entry.
+     * @return True if the entry can be skipped.
+     * @throws IOException
+     *             If the file cannot be read.
+     */
+    public boolean isDone(String name) throws IOException {
+        Entry e = done.get(name);
+        if (e == null)
+            return false;
+        Boolean ok = verified.get(name);
+        if (ok == null) {
+            ok = verify(new File(dest, name), e);
+            verified.put(name, ok);
+        }
+        return ok;
+    }
+
+    /**
+     * Find where reading an archive can continue, for formats which must be
+     * read in order. Entries are verified in the order they were done, up to
+     * the first one which is no longer intact.
+     *
+     * @return The offset in the archive to continue from, or zero.
+     * @throws IOException
+     *             If a file cannot be read.
+     */
+    public long getResumeOffset() throws IOException {
+        long offset = 0;
+        for (Map.Entry<String, Entry> e : done.entrySet()) {
+            if (e.getValue().offset < 0 || !isDone(e.getKey()))
+                break;
+            offset = e.getValue().offset;
+        }
+        return offset;
+    }
+
+    /**
+     * Record that an entry is about to be written.
+     *
+     * @param name
+     *            The name of the entry.
+     */
+    public void begin(String name) throws IOException {
+        if (name.indexOf('\n') < 0)
+            append(BEGUN + " " + name);
+    }
+
+    /**
+     * Record that an entry has been written.
+     *
+     * @param name
+     *            The name of the entry.
+     * @param size
+     *            The size of the entry, or -1 if it is a directory.
+     * @param crc
+     *            The CRC-32 of the entry.
+     * @param offset
+     *            The offset in the archive at which reading can continue, or -1.
+     */
+    public void done(String name, long size, long crc, long offset) throws IOException {
+        if (name.indexOf('\n') < 0)
+            append(DONE + " " + size + " " + Long.toHexString(crc) + " " + offset + " " + name);
+    }
+
+    /**
+     * Delete the checkpoint, the extraction is complete.
+     */
+    public void complete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private synchronized void append(String record) throws IOException {
+        if (out == null)
+            return;
+        CRC32 crc = new CRC32();
+        byte[] data = record.getBytes(StandardCharsets.UTF_8);
+        crc.update(data);
+        ByteBuffer buf = ByteBuffer.wrap((Long.toHexString(crc.getValue()) + " " + record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    private static String unwrap(String line) {
+        int sp = line.indexOf(' ');
+        if (sp < 0)
+            return null;
+        String record = line.substring(sp + 1);
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue()).equals(line.substring(0, sp)) ? record : null;
+    }
+
+    private static boolean verify(File f, Entry e) throws IOException {
+        if (e.size < 0)
+            return f.isDirectory();
+        if (!f.isFile() || f.length() != e.size)
+            return false;
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[IOUtil.BUFFER_SIZE];
+        try (InputStream is = Files.newInputStream(f.toPath())) {
+            int len;
+            while ((len = is.read(buffer)) > 0)
+                crc.update(buffer, 0, len);
+        }
+        return crc.getValue() == e.crc;
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long crc;
+        private final long offset;
+
+        private Entry(long size, long crc, long offset) {
+            this.size = size;
+            this.crc = crc;
+            this.offset = offset;
+        }
+
+    }
+
+}
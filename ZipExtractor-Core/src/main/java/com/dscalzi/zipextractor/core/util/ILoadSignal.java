@@ -0,0 +1,34 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+/**
+ * A measure of how busy the server is, fed by the platform so that background
+ * tasks can back off while the server struggles to keep up.
+ */
+public interface ILoadSignal {
+
+    /**
+     * @return The recent average time a server tick takes, in milliseconds, or
+     *         a negative number if it is not known. A server keeping up with 20
+     *         ticks per second reports 50.
+     */
+    double getTickTime();
+
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
+
+public class IOUtil {
+
+    public static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Copy the remaining content of the input stream to the output stream through
+     * the given buffer. Neither stream is closed.
+     *
+     * @param in
+     *            The stream to read from.
+     * @param out
+     *            The stream to write to.
+     * @param buf
+     *            The buffer to copy through.
+     * @return The number of bytes copied.
+     * @throws IOException
+     *             If either stream fails.
+     */
+    public static long copy(InputStream in, OutputStream out, byte[] buf) throws IOException {
+        return copy(in, out, Long.MAX_VALUE, buf);
+    }
+
+    /**
+     * Copy at most limit bytes of the input stream to the output stream through
+     * the given buffer. Neither stream is closed. The copy is a checkpoint of the
+     * task, see {@link ZServicer#checkpoint()}, so it waits while the task is
+     * paused and fails with a {@link TaskInterruptedException} if the task is
+     * interrupted.
+     *
+     * @param in
+     *            The stream to read from.
+     * @param out
+     *            The stream to write to.
+     * @param limit
+     *            The maximum number of bytes to copy.
+     * @param buf
+     *            The buffer to copy through.
+     * @return The number of bytes copied.
+     * @throws IOException
+     *             If either stream fails.
+     */
+    public static long copy(InputStream in, OutputStream out, long limit, byte[] buf) throws IOException {
+        long total = 0;
+        int len;
+        while (total < limit && (len = in.read(buf, 0, (int) Math.min(buf.length, limit - total))) != -1) {
+            ZServicer.checkpoint();
+            out.write(buf, 0, len);
+            ZServicer.processed(len);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * @return A stream which drops everything written to it.
+     */
+    public static OutputStream discard() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    /**
+     * Wrap a stream reading from disk so that it keeps to the read limits of the
+     * servicer, see {@link ZServicer#throttleRead(long)}.
+     *
+     * @param in
+     *            The stream to wrap.
+     * @return The throttled stream.
+     */
+    public static InputStream throttled(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    ZServicer.throttleRead(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    ZServicer.throttleRead(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wrap a stream writing to disk so that it keeps to the write limits of the
+     * servicer, see {@link ZServicer#throttleWrite(long)}.
+     *
+     * @param out
+     *            The stream to wrap.
+     * @return The throttled stream.
+     */
+    public static OutputStream throttled(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                ZServicer.throttleWrite(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ZServicer.throttleWrite(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+}
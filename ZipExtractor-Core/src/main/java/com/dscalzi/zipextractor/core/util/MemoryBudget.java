@@ -0,0 +1,124 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.util.List;
+
+import com.dscalzi.zipextractor.core.ZTask;
+
+/**
+ * A global budget of memory shared by running tasks. Tasks reserve their
+ * estimated memory usage before they start and wait while the reservations of
+ * other tasks would exceed the budget. A task which is alone is always let
+ * through, so lowering the budget can never leave a task waiting forever.
+ */
+public class MemoryBudget {
+
+    private long limit;
+    private long used;
+
+    /**
+     * @param limit
+     *            The budget in bytes, or zero for no limit.
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Estimate the memory a chain of operations will use. Streamed chains run
+     * every operation at once, otherwise they run one after another.
+     *
+     * @param ops
+     *            The operations of the task.
+     * @param task
+     *            The kind of task.
+     * @param concurrent
+     *            Whether or not the operations run at the same time.
+     * @return The estimated memory usage in bytes.
+     */
+    public static long estimate(List<OpTuple> ops, ZTask task, boolean concurrent) {
+        long total = 0;
+        for (OpTuple op : ops) {
+            long usage = op.getProvider().estimateMemoryUsage(op.getSrc(), task);
+            total = concurrent ? total + usage : Math.max(total, usage);
+        }
+        return total;
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized void setLimit(long limit) {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @param amount
+     *            The memory to reserve, in bytes.
+     * @return Whether or not the amount could ever be reserved.
+     */
+    public synchronized boolean fits(long amount) {
+        return limit <= 0 || amount <= limit;
+    }
+
+    /**
+     * Reserve memory if it is available right away.
+     *
+     * @param amount
+     *            The memory to reserve, in bytes.
+     * @return Whether or not the memory was reserved.
+     */
+    public synchronized boolean tryAcquire(long amount) {
+        if (!available(amount))
+            return false;
+        used += amount;
+        return true;
+    }
+
+    /**
+     * Reserve memory, waiting for other tasks to release theirs if needed.
+     *
+     * @param amount
+     *            The memory to reserve, in bytes.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long amount) throws InterruptedException {
+        while (!available(amount))
+            wait();
+        used += amount;
+    }
+
+    public synchronized void release(long amount) {
+        used = Math.max(0, used - amount);
+        notifyAll();
+    }
+
+    private boolean available(long amount) {
+        return limit <= 0 || used == 0 || used + amount <= limit;
+    }
+
+}
@@ -19,7 +19,11 @@
 package com.dscalzi.zipextractor.core.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.StringJoiner;
 
+import com.dscalzi.zipextractor.core.ZTask;
 import com.dscalzi.zipextractor.core.provider.TypeProvider;
 
 public class OpTuple {
@@ -58,6 +62,37 @@ public class OpTuple {
         this.provider = provider;
     }
 
+    /**
+     * Describe the work done by a chain of operations, so that identical
+     * requests can be told apart from different ones. Paths are made
+     * canonical, so the same files named in different ways give the same key.
+     * 
+     * @param task
+     *            The kind of task.
+     * @param ops
+     *            The operations of the task.
+     * @param options
+     *            The options which change what the task does.
+     * @return The key of the work.
+     */
+    public static String keyOf(ZTask task, Collection<OpTuple> ops, Object... options) {
+        StringJoiner key = new StringJoiner("|");
+        key.add(task.name());
+        for (OpTuple op : ops)
+            key.add(canonical(op.getSrc()) + ">" + canonical(op.getDest()) + ":" + op.getProvider().getClass().getSimpleName());
+        for (Object option : options)
+            key.add(String.valueOf(option));
+        return key.toString();
+    }
+
+    private static String canonical(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsoluteFile().toPath().normalize().toString();
+        }
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
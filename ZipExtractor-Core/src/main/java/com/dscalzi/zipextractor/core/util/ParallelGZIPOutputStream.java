@@ -0,0 +1,216 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+
+/**
+ * Writes a single member gzip stream while deflating fixed size blocks in
+ * parallel, in the manner of pigz. Every block is primed with the last 32KB of
+ * the block before it and ends on a sync flush, so the deflated blocks can be
+ * concatenated into one deflate stream that any gzip reader, including
+ * {@link java.util.zip.GZIPInputStream GZIPInputStream}, accepts.
+ *
+ * At most two blocks per thread are in flight. The writing thread deflates the
+ * oldest block itself if no worker has picked it up yet. Work submitted to the
+ * pool never waits on other work.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICT_SIZE = 32 * 1024;
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    private final int blockSize;
+    private final int level;
+
+    private final Deque<FutureTask<byte[]>> inFlight = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long total;
+
+    private byte[] block;
+    private int blockLen;
+    private byte[] previous;
+    private boolean finished;
+
+    /**
+     * @param out
+     *            The stream to write the gzip data to.
+     * @param pool
+     *            The pool blocks are deflated on.
+     * @param threads
+     *            The number of threads which may deflate blocks at once.
+     * @param blockSize
+     *            The number of uncompressed bytes in each block.
+     * @param level
+     *            The deflate compression level.
+     * @throws IOException
+     *             If the header could not be written.
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService pool, int threads, int blockSize, int level) throws IOException {
+        super(out);
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, threads) * 2;
+        this.blockSize = Math.max(blockSize, DICT_SIZE);
+        this.level = level;
+        this.block = new byte[this.blockSize];
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Stream has been finished");
+        crc.update(b, off, len);
+        total += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == blockSize)
+                submit(false);
+        }
+    }
+
+    /**
+     * Deflate the remaining data and write the gzip trailer. The underlying
+     * stream is not closed.
+     *
+     * @throws IOException
+     *             If the data could not be written.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        submit(true);
+        while (!inFlight.isEmpty())
+            drain();
+        finished = true;
+        writeInt((int) crc.getValue());
+        writeInt((int) total);
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (FutureTask<byte[]> t : inFlight)
+                t.cancel(true);
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] data = block;
+        final int len = blockLen;
+        final byte[] dict = previous;
+        FutureTask<byte[]> task = new FutureTask<>(() -> deflate(data, len, dict, last));
+        inFlight.add(task);
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down, the writing thread will run it.
+        }
+        previous = data;
+        block = new byte[blockSize];
+        blockLen = 0;
+        while (inFlight.size() >= maxInFlight)
+            drain();
+    }
+
+    private void drain() throws IOException {
+        FutureTask<byte[]> head = inFlight.poll();
+        head.run();
+        try {
+            out.write(head.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new TaskInterruptedException();
+        }
+    }
+
+    private byte[] deflate(byte[] data, int len, byte[] dict, boolean last) {
+        Deflater def = new Deflater(level, true);
+        try {
+            if (dict != null)
+                def.setDictionary(dict, dict.length - DICT_SIZE, DICT_SIZE);
+            def.setInput(data, 0, len);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 64);
+            byte[] buf = new byte[16384];
+            if (last) {
+                def.finish();
+                while (!def.finished()) {
+                    int n = def.deflate(buf);
+                    bos.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    bos.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return bos.toByteArray();
+        } finally {
+            def.end();
+        }
+    }
+
+    private void writeInt(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 24) & 0xFF);
+    }
+
+}
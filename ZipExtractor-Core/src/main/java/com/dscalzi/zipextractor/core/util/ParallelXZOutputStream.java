@@ -0,0 +1,312 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+
+/**
+ * Writes a single .xz stream made of independent blocks which are encoded in
+ * parallel. Each block is encoded on its own as a complete stream, from which
+ * the block is lifted and appended to the output. The index recording every
+ * block is written when the stream is finished, which allows readers such as
+ * {@link org.tukaani.xz.SeekableXZInputStream SeekableXZInputStream} to decode
+ * the blocks in parallel as well.
+ *
+ * At most one block per thread is in flight. The writing thread encodes the
+ * oldest block itself if no worker has picked it up yet. Work submitted to the
+ * pool never waits on other work. Each block in flight borrows an array cache
+ * which is handed to the next block once done, so the encoder buffers are
+ * allocated once per thread rather than once per block.
+ */
+public class ParallelXZOutputStream extends FilterOutputStream {
+
+    private static final byte[] MAGIC = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+    private static final byte[] FOOTER_MAGIC = { 'Y', 'Z' };
+
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    private final int blockSize;
+    private final LZMA2Options options;
+    private final byte[] flags = { 0, (byte) XZ.CHECK_CRC64 };
+
+    private final Deque<FutureTask<Block>> inFlight = new ArrayDeque<>();
+    private final List<long[]> records = new ArrayList<>();
+    private final Queue<ArrayCache> caches = new ConcurrentLinkedQueue<>();
+
+    private byte[] block;
+    private int blockLen;
+    private boolean finished;
+
+    /**
+     * The block size used by xz itself: three times the dictionary size, and at
+     * least one megabyte.
+     *
+     * @param options
+     *            The options blocks are encoded with.
+     * @return The recommended block size.
+     */
+    public static int defaultBlockSize(LZMA2Options options) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1 << 20, 3L * options.getDictSize()));
+    }
+
+    /**
+     * @param out
+     *            The stream to write the .xz data to.
+     * @param pool
+     *            The pool blocks are encoded on.
+     * @param threads
+     *            The number of threads which may encode blocks at once.
+     * @param options
+     *            The options blocks are encoded with.
+     * @param blockSize
+     *            The number of uncompressed bytes in each block.
+     * @throws IOException
+     *             If the header could not be written.
+     */
+    public ParallelXZOutputStream(OutputStream out, ExecutorService pool, int threads, LZMA2Options options, int blockSize) throws IOException {
+        super(out);
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, threads);
+        this.options = options;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        out.write(MAGIC);
+        out.write(flags);
+        writeInt(out, crc32(flags, 0, flags.length));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Stream has been finished");
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == blockSize)
+                submit();
+        }
+    }
+
+    /**
+     * Encode the remaining data and write the index and stream footer. The
+     * underlying stream is not closed.
+     *
+     * @throws IOException
+     *             If the data could not be written.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        if (blockLen > 0)
+            submit();
+        while (!inFlight.isEmpty())
+            drain();
+        finished = true;
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        index.write(0);
+        writeVLI(index, records.size());
+        for (long[] r : records) {
+            writeVLI(index, r[0]);
+            writeVLI(index, r[1]);
+        }
+        while (index.size() % 4 != 0)
+            index.write(0);
+        byte[] idx = index.toByteArray();
+        out.write(idx);
+        writeInt(out, crc32(idx, 0, idx.length));
+
+        byte[] tail = new byte[6];
+        int backwardSize = (idx.length + 4) / 4 - 1;
+        for (int i = 0; i < 4; i++)
+            tail[i] = (byte) (backwardSize >>> (i * 8));
+        tail[4] = flags[0];
+        tail[5] = flags[1];
+        writeInt(out, crc32(tail, 0, tail.length));
+        out.write(tail);
+        out.write(FOOTER_MAGIC);
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (FutureTask<Block> t : inFlight)
+                t.cancel(true);
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int len = blockLen;
+        FutureTask<Block> task = new FutureTask<>(() -> encode(data, len));
+        inFlight.add(task);
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down, the writing thread will run it.
+        }
+        block = new byte[blockSize];
+        blockLen = 0;
+        while (inFlight.size() >= maxInFlight)
+            drain();
+    }
+
+    private void drain() throws IOException {
+        FutureTask<Block> head = inFlight.poll();
+        head.run();
+        try {
+            Block b = head.get();
+            out.write(b.stream, b.offset, b.length);
+            records.add(new long[] { b.unpaddedSize, b.uncompressedSize });
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new TaskInterruptedException();
+        }
+    }
+
+    /**
+     * Encode the data as a complete single block stream, then locate the block
+     * through the stream's own index.
+     */
+    private Block encode(byte[] data, int len) throws IOException {
+        ArrayCache cache = caches.poll();
+        if (cache == null)
+            cache = new BasicArrayCache();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 1024);
+        try {
+            XZOutputStream xzos = new XZOutputStream(bos, options, flags[1], cache);
+            xzos.write(data, 0, len);
+            // Finishing also returns the encoder buffers to the cache.
+            xzos.finish();
+        } finally {
+            caches.add(cache);
+        }
+        byte[] s = bos.toByteArray();
+
+        int backwardSize = readInt(s, s.length - 8);
+        int pos = s.length - 12 - (backwardSize + 1) * 4;
+        long[] cursor = { pos + 1 };
+        if (s[pos] != 0 || readVLI(s, cursor) != 1)
+            throw new IOException("Unexpected block layout");
+        long unpadded = readVLI(s, cursor);
+        long uncompressed = readVLI(s, cursor);
+        return new Block(s, MAGIC.length + 6, (int) ((unpadded + 3) & ~3L), unpadded, uncompressed);
+    }
+
+    private static int crc32(byte[] b, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 24) & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static void writeVLI(ByteArrayOutputStream out, long v) {
+        while (v >= 0x80) {
+            out.write((int) (v | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVLI(byte[] b, long[] cursor) {
+        long v = 0;
+        int shift = 0;
+        int c;
+        do {
+            c = b[(int) cursor[0]++] & 0xFF;
+            v |= (long) (c & 0x7F) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        return v;
+    }
+
+    private static class Block {
+
+        private final byte[] stream;
+        private final int offset;
+        private final int length;
+        private final long unpaddedSize;
+        private final long uncompressedSize;
+
+        private Block(byte[] stream, int offset, int length, long unpaddedSize, long uncompressedSize) {
+            this.stream = stream;
+            this.offset = offset;
+            this.length = length;
+            this.unpaddedSize = unpaddedSize;
+            this.uncompressedSize = uncompressedSize;
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.tukaani.xz.SeekableInputStream;
+
+/**
+ * A {@link SeekableInputStream} backed by positional reads on a FileChannel.
+ * Each instance keeps its own position, so any number of them can share one
+ * channel across threads. Closing the stream does not close the channel.
+ */
+public class SeekableChannelInputStream extends SeekableInputStream {
+
+    private final FileChannel ch;
+    private long pos;
+
+    public SeekableChannelInputStream(FileChannel ch) {
+        this.ch = ch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int n = ch.read(ByteBuffer.wrap(b, off, len), pos);
+        if (n > 0)
+            pos += n;
+        return n;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return ch.size();
+    }
+
+    @Override
+    public long position() {
+        return pos;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0)
+            throw new IOException("Negative seek position: " + pos);
+        this.pos = pos;
+    }
+
+    @Override
+    public void close() {
+        // The channel is owned by the caller.
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Scratch space which is kept in memory until it grows past a threshold, after
+ * which it is moved to a temporary file. Write to it, close it, read it back with
+ * {@link #openInputStream()} and finally {@link #dispose()} of it.
+ */
+public class SpillBuffer extends OutputStream {
+
+    private final int threshold;
+    private final File dir;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private long size;
+
+    /**
+     * @param threshold
+     *            The number of bytes kept in memory before spilling to disk.
+     * @param dir
+     *            The directory temporary files are created in.
+     */
+    public SpillBuffer(int threshold, File dir) {
+        this.threshold = threshold;
+        this.dir = dir;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileOut == null && memory.size() + len > threshold) {
+            file = Files.createTempFile(dir.toPath(), ".zipextractor-", ".tmp");
+            fileOut = Files.newOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (fileOut != null)
+            fileOut.write(b, off, len);
+        else
+            memory.write(b, off, len);
+        size += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null)
+            fileOut.close();
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return Whether or not the content was moved to a temporary file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return A stream over everything written to the buffer.
+     * @throws IOException
+     *             If the temporary file could not be opened.
+     */
+    public InputStream openInputStream() throws IOException {
+        if (file != null)
+            return Files.newInputStream(file);
+        return new ByteArrayInputStream(memory.toByteArray());
+    }
+
+    /**
+     * Release the buffer and delete its temporary file, if any.
+     */
+    public void dispose() {
+        memory = null;
+        if (file != null) {
+            try {
+                close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
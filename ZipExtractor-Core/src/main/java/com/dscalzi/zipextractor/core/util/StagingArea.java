@@ -0,0 +1,204 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.dscalzi.zipextractor.core.ZServicer;
+
+/**
+ * A temporary directory inside an extraction's destination. Files are
+ * extracted into the staging area and then moved into the destination in a
+ * single commit. Moves never replace existing files, so conflicts are detected
+ * while the archive is read only once.
+ *
+ * Every file is also checked against the destination as it is created, see
+ * {@link #check(File)}. Conflicting files are skipped rather than staged, so a
+ * conflicting extraction writes no more than it must, while every conflict is
+ * still found in the same pass.
+ *
+ * The staging directory is named after the archive. If an extraction is cut
+ * short by a crash or by the server stopping, the staging area is left in
+ * place along with the extraction's checkpoint, so that extracting the same
+ * archive again resumes it. Anything else found in the directory is removed.
+ */
+public class StagingArea {
+
+    public static final String PREFIX = ".zipextractor-staging-";
+
+    // Staging areas in use, checked as files are created.
+    private static final Set<StagingArea> OPEN = ConcurrentHashMap.newKeySet();
+
+    private final Path dest;
+    private final Path dir;
+    private final List<String> conflicts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Open the staging area for extracting an archive to the given destination
+     * directory. A staging area left behind by an earlier run is reused if it
+     * holds a checkpoint of the same archive, otherwise it is emptied.
+     *
+     * @param src
+     *            The archive.
+     * @param dest
+     *            The destination directory.
+     * @throws IOException
+     *             If the staging directory could not be created.
+     */
+    public StagingArea(File src, File dest) throws IOException {
+        this.dest = dest.toPath().toAbsolutePath().normalize();
+        CRC32 crc = new CRC32();
+        crc.update(src.getAbsoluteFile().toPath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        this.dir = this.dest.resolve(PREFIX + Long.toHexString(crc.getValue()));
+        if (Files.exists(dir) && ExtractionCheckpoint.claimed(src, dir.toFile()).isEmpty())
+            delete(dir);
+        Files.createDirectories(dir);
+        OPEN.add(this);
+    }
+
+    /**
+     * Must be called by extractions before they create a file. If the file is
+     * inside a staging area and the file it would be moved to exists, the
+     * conflict is recorded and the file must not be written. The extraction
+     * carries on with its next file, so that every conflict is recorded.
+     *
+     * @param file
+     *            The file about to be created.
+     * @return False if the file would override an existing file and must be
+     *         skipped.
+     */
+    public static boolean check(File file) {
+        if (OPEN.isEmpty())
+            return true;
+        Path p = file.toPath().toAbsolutePath().normalize();
+        for (StagingArea area : OPEN) {
+            if (p.startsWith(area.dir)) {
+                String rel = area.dir.relativize(p).toString();
+                if (Files.exists(area.dest.resolve(rel))) {
+                    area.conflicts.add(PathUtils.formatPath(rel, true));
+                    return false;
+                }
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The conflicts found while files were created, see
+     *         {@link #check(File)}.
+     */
+    public List<String> getConflicts() {
+        return new ArrayList<>(conflicts);
+    }
+
+    /**
+     * @return The directory files should be extracted to.
+     */
+    public File getDirectory() {
+        return dir.toFile();
+    }
+
+    /**
+     * Move the staged files into the destination. If any staged file would
+     * override an existing file, or any file was skipped for doing so, nothing
+     * is moved and the paths of all of the conflicting files (relative to the
+     * destination) are returned.
+     *
+     * @return A List containing the paths of the files which would be overridden.
+     * @throws IOException
+     *             If the staged files could not be moved.
+     */
+    public List<String> commit() throws IOException {
+        List<String> conflicts = new ArrayList<>(this.conflicts);
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.skip(1).forEach(p -> {
+                ZServicer.checkpoint();
+                Path target = dest.resolve(dir.relativize(p).toString());
+                // Existing directories are merged, anything else would be replaced.
+                if (Files.exists(target) && !(Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(target))) {
+                    conflicts.add(PathUtils.formatPath(dir.relativize(p).toString(), true));
+                }
+            });
+        }
+        if (conflicts.isEmpty()) {
+            merge(dir, dest);
+        }
+        return conflicts;
+    }
+
+    private void merge(Path from, Path to) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(from)) {
+            for (Path p : ds) {
+                Path target = to.resolve(p.getFileName().toString());
+                if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(target)) {
+                    merge(p, target);
+                } else {
+                    // Without REPLACE_EXISTING this fails if the target appeared in the meantime.
+                    // New directories are moved along with all of their contents.
+                    Files.move(p, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop using the staging area and delete the staging directory along with
+     * anything left inside of it.
+     */
+    public void discard() {
+        OPEN.remove(this);
+        if (!Files.exists(dir))
+            return;
+        try {
+            delete(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop using the staging area, leaving the staging directory in place so
+     * that an interrupted extraction can be resumed.
+     */
+    public void keep() {
+        OPEN.remove(this);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+}
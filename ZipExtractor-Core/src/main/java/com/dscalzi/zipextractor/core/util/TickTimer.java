@@ -0,0 +1,53 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+/**
+ * Measures the tick time of a server from the main thread. The platform runs
+ * the timer once every tick, and the time between two runs is averaged over
+ * about a second's worth of ticks. A tick which is taking longer than the
+ * average so far counts as it is.
+ */
+public class TickTimer implements Runnable, ILoadSignal {
+
+    // The weight of the newest tick in the average.
+    private static final double WEIGHT = 0.05;
+
+    private volatile long last;
+    private volatile double average = -1;
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        if (last != 0) {
+            double ms = (now - last) / 1e6;
+            average = average < 0 ? ms : average + (ms - average) * WEIGHT;
+        }
+        last = now;
+    }
+
+    @Override
+    public double getTickTime() {
+        if (average < 0)
+            return -1;
+        // A server stuck in a tick does not run the timer at all.
+        return Math.max(average, (System.nanoTime() - last) / 1e6);
+    }
+
+}
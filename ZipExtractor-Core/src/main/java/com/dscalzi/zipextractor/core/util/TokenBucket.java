@@ -0,0 +1,92 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.util.concurrent.TimeUnit;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+
+/**
+ * Limits the rate at which bytes pass, shared by any number of threads. A
+ * bucket which has been idle lets a quarter of a second's worth of bytes
+ * through at once, after which callers are held back to the rate.
+ *
+ * Callers take what they need up front and then sleep off the debt outside of
+ * the lock, so one thread waiting does not hold up the accounting of others.
+ */
+public class TokenBucket {
+
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(250);
+
+    // Bytes per second, zero for no limit.
+    private volatile long rate;
+    // The time at which every byte taken so far will have been paid for.
+    private long paid = System.nanoTime();
+
+    public TokenBucket(long rate) {
+        this.rate = Math.max(0, rate);
+    }
+
+    /**
+     * @return The limit in bytes per second, or zero if there is none.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate
+     *            The limit in bytes per second, or zero for none.
+     */
+    public synchronized void setRate(long rate) {
+        this.rate = Math.max(0, rate);
+        // Debt taken at the old rate is forgiven.
+        this.paid = System.nanoTime();
+    }
+
+    /**
+     * Take bytes from the bucket, waiting until the rate allows for them.
+     *
+     * @param bytes
+     *            The number of bytes.
+     * @throws TaskInterruptedException
+     *             If the thread is interrupted while it waits.
+     */
+    public void acquire(long bytes) {
+        if (rate == 0 || bytes <= 0)
+            return;
+        long wait;
+        synchronized (this) {
+            long r = rate;
+            if (r == 0)
+                return;
+            long now = System.nanoTime();
+            paid = Math.max(paid, now - BURST) + (long) (bytes * (1e9 / r));
+            wait = paid - now;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new TaskInterruptedException();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.dscalzi.zipextractor.core.TaskInterruptedException;
+import com.dscalzi.zipextractor.core.ZServicer;
+
+/**
+ * The I/O stage of an extraction. Files are created, written and closed on the
+ * servicer's I/O pool while the task's own thread goes on decoding, so a slow
+ * disk and a slow decoder no longer hold each other up.
+ *
+ * Operations are run in the order they were made, one at a time per stage. At
+ * most {@link #CAPACITY} bytes may be waiting to be written, past which the
+ * decoding thread blocks. The first error is thrown by the next operation, and
+ * everything after it is skipped except for closing files. Stages of several
+ * tasks share the pool in turns.
+ *
+ * If the servicer has no I/O threads, every operation is run right away on the
+ * calling thread.
+ */
+public class WriteBehind implements Closeable {
+
+    public static final int CAPACITY = 8 << 20;
+
+    private static final int CHUNK = 64 * 1024;
+    // Bytes written before a stage lets the stages of other tasks have a turn.
+    private static final int TURN = 1 << 20;
+
+    private final Executor pool;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Op> ops = new ArrayDeque<>();
+    private long pending;
+    private boolean scheduled;
+    private IOException error;
+
+    private WriteBehind(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return A new stage writing on the servicer's I/O pool.
+     */
+    public static WriteBehind open() {
+        ZServicer z = ZServicer.getInstance();
+        return new WriteBehind(z.getIOThreads() > 0 ? z.getIOPool() : null);
+    }
+
+    /**
+     * Create a file, or truncate it if it exists. The returned stream must be
+     * closed. If the file is staged and would override an existing file, see
+     * {@link StagingArea#check(File)}, whatever is written is dropped instead.
+     *
+     * @param file
+     *            The file to write.
+     * @return A stream writing to the file.
+     * @throws IOException
+     *             If an earlier operation failed.
+     */
+    public OutputStream create(File file) throws IOException {
+        if (!StagingArea.check(file))
+            return IOUtil.discard();
+        return new StagedOutputStream(file);
+    }
+
+    /**
+     * Wait for every operation to complete.
+     *
+     * @throws IOException
+     *             If any operation failed.
+     */
+    public void finish() throws IOException {
+        lock.lock();
+        try {
+            while (scheduled) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    throw new TaskInterruptedException();
+                }
+            }
+            if (error != null)
+                throw error;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skip whatever has not been written yet and wait for the stage to stop.
+     * Files which were opened are always closed.
+     */
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            if (error == null)
+                error = new IOException("Stage closed");
+            while (scheduled) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void enqueue(Op op) throws IOException {
+        if (pool == null) {
+            op.run();
+            return;
+        }
+        lock.lock();
+        try {
+            while (error == null && pending > 0 && pending + op.size > CAPACITY) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    throw new TaskInterruptedException();
+                }
+            }
+            if (error != null && !op.always)
+                throw error;
+            ops.add(op);
+            pending += op.size;
+            if (!scheduled) {
+                scheduled = true;
+                schedule();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule() {
+        try {
+            pool.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down, drain on a thread of our own.
+            Thread t = new Thread(this::drain, "ZipExtractor Write Behind");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void drain() {
+        long written = 0;
+        while (true) {
+            Op op;
+            boolean skip;
+            lock.lock();
+            try {
+                if (written >= TURN && !ops.isEmpty()) {
+                    schedule();
+                    return;
+                }
+                op = ops.poll();
+                if (op == null) {
+                    scheduled = false;
+                    changed.signalAll();
+                    return;
+                }
+                skip = error != null && !op.always;
+            } finally {
+                lock.unlock();
+            }
+            IOException failure = null;
+            try {
+                if (!skip)
+                    op.run();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            // Creating or closing a file costs about as much as writing a block.
+            written += op.size + 4096;
+            lock.lock();
+            try {
+                if (failure != null && error == null)
+                    error = failure;
+                pending -= op.size;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private abstract static class Op {
+
+        private final int size;
+        private final boolean always;
+
+        private Op(int size, boolean always) {
+            this.size = size;
+            this.always = always;
+        }
+
+        abstract void run() throws IOException;
+
+    }
+
+    private class StagedOutputStream extends OutputStream {
+
+        // Only touched by the stage once created.
+        private FileOutputStream out;
+
+        private byte[] chunk = new byte[CHUNK];
+        private int len;
+        private boolean closed;
+
+        private StagedOutputStream(File file) throws IOException {
+            enqueue(new Op(0, false) {
+                @Override
+                void run() throws IOException {
+                    out = new FileOutputStream(file);
+                }
+            });
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (len == chunk.length)
+                push();
+            chunk[len++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n > 0) {
+                if (len == chunk.length)
+                    push();
+                int c = Math.min(n, chunk.length - len);
+                System.arraycopy(b, off, chunk, len, c);
+                len += c;
+                off += c;
+                n -= c;
+            }
+        }
+
+        private void push() throws IOException {
+            if (len == 0)
+                return;
+            final byte[] data = chunk;
+            final int size = len;
+            chunk = new byte[CHUNK];
+            len = 0;
+            // Held back here rather than on the pool, so that only this task waits.
+            ZServicer.throttleWrite(size);
+            enqueue(new Op(size, false) {
+                @Override
+                void run() throws IOException {
+                    out.write(data, 0, size);
+                }
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                push();
+            } finally {
+                enqueue(new Op(0, true) {
+                    @Override
+                    void run() throws IOException {
+                        if (out != null)
+                            out.close();
+                    }
+                });
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a ZIP archive from entries which have already been compressed. Since
+ * the sizes and CRC of every entry are known up front, no data descriptors are
+ * needed. Zip64 records are written only when a size, offset or the number of
+ * entries does not fit the classic format. The output stream is not closed.
+ */
+public class ZipArchiveWriter {
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+    private final List<Record> records = new ArrayList<>();
+    private long written;
+
+    public ZipArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write a single entry.
+     *
+     * @param name
+     *            The name of the entry.
+     * @param time
+     *            The modification time of the entry, in milliseconds.
+     * @param method
+     *            The compression method, see {@link ZipCentralDirectory#DEFLATED}.
+     * @param crc
+     *            The CRC-32 of the uncompressed data.
+     * @param size
+     *            The uncompressed size.
+     * @param data
+     *            The compressed data, exactly csize bytes long.
+     * @param csize
+     *            The compressed size.
+     * @param buf
+     *            A buffer to copy the data through.
+     * @throws IOException
+     *             If the entry could not be written.
+     */
+    public void putEntry(String name, long time, int method, long crc, long size, InputStream data, long csize, byte[] buf) throws IOException {
+        Record r = new Record(name.getBytes(StandardCharsets.UTF_8), dosTime(time), method, crc, size, csize, written);
+        boolean zip64 = size >= ZIP64_MAGIC || csize >= ZIP64_MAGIC;
+
+        ByteBuffer b = header(30 + r.name.length + (zip64 ? 20 : 0));
+        b.putInt(LOC_SIG);
+        b.putShort((short) (zip64 ? 45 : 20));
+        b.putShort((short) UTF8_FLAG);
+        b.putShort((short) method);
+        b.putInt((int) r.dosTime);
+        b.putInt((int) crc);
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : csize));
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        b.putShort((short) r.name.length);
+        b.putShort((short) (zip64 ? 20 : 0));
+        b.put(r.name);
+        if (zip64) {
+            b.putShort((short) ZIP64_EXTRA);
+            b.putShort((short) 16);
+            b.putLong(size);
+            b.putLong(csize);
+        }
+        write(b);
+
+        if (IOUtil.copy(data, out, csize, buf) != csize)
+            throw new IOException("Entry data ended early: " + name);
+        written += csize;
+        records.add(r);
+    }
+
+    /**
+     * Write the central directory. No entries may be added afterwards.
+     *
+     * @throws IOException
+     *             If the central directory could not be written.
+     */
+    public void finish() throws IOException {
+        final long cenOffset = written;
+        for (Record r : records) {
+            boolean bigSize = r.size >= ZIP64_MAGIC;
+            boolean bigCsize = r.csize >= ZIP64_MAGIC;
+            boolean bigOffset = r.offset >= ZIP64_MAGIC;
+            int extra = (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+            int extraLen = extra > 0 ? extra + 4 : 0;
+            short version = (short) (extra > 0 ? 45 : 20);
+
+            ByteBuffer b = header(46 + r.name.length + extraLen);
+            b.putInt(CEN_SIG);
+            b.putShort(version);
+            b.putShort(version);
+            b.putShort((short) UTF8_FLAG);
+            b.putShort((short) r.method);
+            b.putInt((int) r.dosTime);
+            b.putInt((int) r.crc);
+            b.putInt((int) (bigCsize ? ZIP64_MAGIC : r.csize));
+            b.putInt((int) (bigSize ? ZIP64_MAGIC : r.size));
+            b.putShort((short) r.name.length);
+            b.putShort((short) extraLen);
+            b.putShort((short) 0); // comment length
+            b.putShort((short) 0); // disk number
+            b.putShort((short) 0); // internal attributes
+            b.putInt(0); // external attributes
+            b.putInt((int) (bigOffset ? ZIP64_MAGIC : r.offset));
+            b.put(r.name);
+            if (extra > 0) {
+                b.putShort((short) ZIP64_EXTRA);
+                b.putShort((short) extra);
+                if (bigSize)
+                    b.putLong(r.size);
+                if (bigCsize)
+                    b.putLong(r.csize);
+                if (bigOffset)
+                    b.putLong(r.offset);
+            }
+            write(b);
+        }
+        final long cenSize = written - cenOffset;
+        final boolean zip64 = records.size() >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC;
+
+        if (zip64) {
+            final long end64Offset = written;
+            ByteBuffer b = header(56 + 20);
+            b.putInt(ZIP64_END_SIG);
+            b.putLong(44); // size of the remaining record
+            b.putShort((short) 45);
+            b.putShort((short) 45);
+            b.putInt(0); // this disk
+            b.putInt(0); // central directory disk
+            b.putLong(records.size());
+            b.putLong(records.size());
+            b.putLong(cenSize);
+            b.putLong(cenOffset);
+            b.putInt(ZIP64_LOC_SIG);
+            b.putInt(0); // end record disk
+            b.putLong(end64Offset);
+            b.putInt(1); // total disks
+            write(b);
+        }
+
+        ByteBuffer b = header(22);
+        b.putInt(END_SIG);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) (zip64 ? 0xFFFF : records.size()));
+        b.putShort((short) (zip64 ? 0xFFFF : records.size()));
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : cenSize));
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : cenOffset));
+        b.putShort((short) 0); // comment length
+        write(b);
+        out.flush();
+    }
+
+    private static ByteBuffer header(int len) {
+        return ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer b) throws IOException {
+        out.write(b.array(), 0, b.position());
+        written += b.position();
+    }
+
+    private static long dosTime(long time) {
+        LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (d.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (long) (d.getYear() - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16
+                | d.getHour() << 11 | d.getMinute() << 5 | d.getSecond() >> 1;
+    }
+
+    private static class Record {
+
+        private final byte[] name;
+        private final long dosTime;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long csize;
+        private final long offset;
+
+        private Record(byte[] name, long dosTime, int method, long crc, long size, long csize, long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.csize = csize;
+            this.offset = offset;
+        }
+
+    }
+
+}
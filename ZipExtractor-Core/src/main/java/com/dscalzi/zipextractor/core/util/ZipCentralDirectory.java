@@ -0,0 +1,445 @@
+/*
+ * This file is part of ZipExtractor.
+ * Copyright (C) 2016-2020 Daniel D. Scalzi <https://github.com/dscalzi/ZipExtractor>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dscalzi.zipextractor.core.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import com.dscalzi.zipextractor.core.ZServicer;
+
+/**
+ * Reads the central directory found at the end of a ZIP archive. This allows
+ * the entries of an archive to be listed without inflating any of them, and
+ * allows each entry to be opened independently of the others.
+ */
+public class ZipCentralDirectory {
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+
+    private static final int LOC_HDR = 30;
+    private static final int CEN_HDR = 46;
+    private static final int END_HDR = 22;
+    private static final int ZIP64_LOC_HDR = 20;
+    private static final int ZIP64_END_HDR = 56;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private final List<Entry> entries;
+
+    private ZipCentralDirectory(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Read the central directory of the given archive.
+     *
+     * @param file
+     *            The archive to read.
+     * @return The parsed central directory.
+     * @throws IOException
+     *             If the file cannot be read or is not a valid ZIP archive.
+     */
+    public static ZipCentralDirectory read(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(ch);
+        }
+    }
+
+    /**
+     * Read the central directory of the archive backed by the given channel. Only
+     * positional reads are used, so the position of the channel is not modified.
+     *
+     * @param ch
+     *            A channel to the archive.
+     * @return The parsed central directory.
+     * @throws IOException
+     *             If the channel cannot be read or is not a valid ZIP archive.
+     */
+    public static ZipCentralDirectory read(FileChannel ch) throws IOException {
+        final long length = ch.size();
+        if (length < END_HDR)
+            throw new ZipException("File is too small to be a zip archive.");
+
+        // The end record sits behind an optional comment of up to 64KB.
+        int tailLen = (int) Math.min(length, END_HDR + MAX_COMMENT);
+        ByteBuffer tail = readFully(ch, length - tailLen, tailLen);
+        int endPos = -1;
+        for (int i = tailLen - END_HDR; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG && i + END_HDR + u16(tail, i + 20) <= tailLen) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1)
+            throw new ZipException("End of central directory record not found.");
+
+        long endOffset = length - tailLen + endPos;
+        long total = u16(tail, endPos + 10);
+        long cenSize = u32(tail, endPos + 12);
+        long cenOffset = u32(tail, endPos + 16);
+
+        if (total == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) {
+            if (endOffset >= ZIP64_LOC_HDR) {
+                ByteBuffer loc = readFully(ch, endOffset - ZIP64_LOC_HDR, ZIP64_LOC_HDR);
+                if (loc.getInt(0) == ZIP64_LOC_SIG) {
+                    ByteBuffer end64 = readFully(ch, loc.getLong(8), ZIP64_END_HDR);
+                    if (end64.getInt(0) != ZIP64_END_SIG)
+                        throw new ZipException("Invalid zip64 end of central directory record.");
+                    total = end64.getLong(32);
+                    cenSize = end64.getLong(40);
+                    cenOffset = end64.getLong(48);
+                }
+            }
+        }
+
+        if (cenOffset < 0 || cenSize < 0 || cenOffset + cenSize > length)
+            throw new ZipException("Invalid central directory offset.");
+
+        List<Entry> entries = new ArrayList<>((int) Math.min(total, 1 << 16));
+        CenReader in = new CenReader(ch, cenOffset, cenSize);
+        for (long i = 0; i < total; i++) {
+            entries.add(in.next(length));
+        }
+        return new ZipCentralDirectory(entries);
+    }
+
+    /**
+     * @return The entries in the order they appear in the central directory.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The entries ordered by the offset of their local header. Reading
+     *         the entries in this order keeps access to the archive sequential.
+     */
+    public List<Entry> getEntriesByOffset() {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(Entry::getLocalHeaderOffset));
+        return sorted;
+    }
+
+    /**
+     * Opens a stream over the uncompressed contents of an entry. The stream
+     * only performs positional reads on the channel, so any number of entries
+     * may be read from the same channel concurrently.
+     *
+     * @param ch
+     *            A channel to the archive.
+     * @param e
+     *            The entry to open.
+     * @return An InputStream of the entry's uncompressed data.
+     * @throws IOException
+     *             If the local header is invalid or the entry cannot be read.
+     */
+    public static InputStream openEntry(FileChannel ch, Entry e) throws IOException {
+        if (!e.isSupported())
+            throw new ZipException("Unsupported zip entry: " + e.getName());
+        ByteBuffer loc = readFully(ch, e.getLocalHeaderOffset(), LOC_HDR);
+        if (loc.getInt(0) != LOC_SIG)
+            throw new ZipException("Invalid local header for entry: " + e.getName());
+        long dataOffset = e.getLocalHeaderOffset() + LOC_HDR + u16(loc, 26) + u16(loc, 28);
+        InputStream raw = new RangeInputStream(ch, dataOffset, e.getCompressedSize());
+        if (e.getMethod() == STORED)
+            return raw;
+        return new EntryInflaterInputStream(raw, e.getSize());
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0)
+                throw new EOFException("Unexpected end of zip archive.");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int u16(ByteBuffer b, int pos) {
+        return b.getShort(pos) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer b, int pos) {
+        return b.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Sequentially reads central directory headers in fixed size chunks.
+     */
+    private static class CenReader {
+
+        private final FileChannel ch;
+        private final long end;
+        private long pos;
+        private ByteBuffer buf = ByteBuffer.allocate(0);
+        private long bufPos;
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        CenReader(FileChannel ch, long offset, long size) {
+            this.ch = ch;
+            this.pos = offset;
+            this.end = offset + size;
+        }
+
+        private void require(int len) throws IOException {
+            if (pos + len > end)
+                throw new ZipException("Invalid central directory header.");
+            if (pos >= bufPos && pos + len <= bufPos + buf.limit())
+                return;
+            int size = (int) Math.min(Math.max(len, 1 << 16), end - pos);
+            buf = readFully(ch, pos, size);
+            bufPos = pos;
+        }
+
+        Entry next(long archiveLength) throws IOException {
+            require(CEN_HDR);
+            int p = (int) (pos - bufPos);
+            if (buf.getInt(p) != CEN_SIG)
+                throw new ZipException("Invalid central directory header.");
+            int flags = u16(buf, p + 8);
+            int method = u16(buf, p + 10);
+            long crc = u32(buf, p + 16);
+            long csize = u32(buf, p + 20);
+            long size = u32(buf, p + 24);
+            int nameLen = u16(buf, p + 28);
+            int extraLen = u16(buf, p + 30);
+            int commentLen = u16(buf, p + 32);
+            long offset = u32(buf, p + 42);
+
+            int varLen = nameLen + extraLen + commentLen;
+            require(CEN_HDR + varLen);
+            p = (int) (pos - bufPos);
+
+            byte[] nameBytes = new byte[nameLen];
+            for (int i = 0; i < nameLen; i++)
+                nameBytes[i] = buf.get(p + CEN_HDR + i);
+            String name;
+            try {
+                name = utf8.decode(ByteBuffer.wrap(nameBytes)).toString();
+            } catch (CharacterCodingException e) {
+                // Without general purpose bit 11 the name may be in any legacy
+                // charset, leave such archives to the sequential reader.
+                throw new ZipException((flags & 0x800) != 0
+                        ? "Invalid UTF-8 entry name." : "Entry name is not UTF-8.");
+            }
+
+            // Zip64 extended information, values are only present if the
+            // corresponding header field has been maxed out.
+            int x = p + CEN_HDR + nameLen;
+            int xEnd = x + extraLen;
+            while (x + 4 <= xEnd) {
+                int tag = u16(buf, x);
+                int sz = u16(buf, x + 2);
+                int d = x + 4;
+                if (tag == 0x0001) {
+                    if (size == 0xFFFFFFFFL && d + 8 <= xEnd) {
+                        size = buf.getLong(d);
+                        d += 8;
+                    }
+                    if (csize == 0xFFFFFFFFL && d + 8 <= xEnd) {
+                        csize = buf.getLong(d);
+                        d += 8;
+                    }
+                    if (offset == 0xFFFFFFFFL && d + 8 <= xEnd) {
+                        offset = buf.getLong(d);
+                    }
+                    break;
+                }
+                x = d + sz;
+            }
+
+            if (offset < 0 || csize < 0 || size < 0 || offset + csize > archiveLength)
+                throw new ZipException("Invalid central directory entry: " + name);
+
+            pos += CEN_HDR + varLen;
+            return new Entry(name, flags, method, crc, csize, size, offset);
+        }
+    }
+
+    /**
+     * Bounded InputStream backed by positional reads on a FileChannel.
+     */
+    private static class RangeInputStream extends InputStream {
+
+        private final FileChannel ch;
+        private long pos;
+        private long remaining;
+
+        RangeInputStream(FileChannel ch, long pos, long len) {
+            this.ch = ch;
+            this.pos = pos;
+            this.remaining = len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            if (len == 0)
+                return 0;
+            int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), pos);
+            if (n < 0)
+                throw new EOFException("Unexpected end of zip entry.");
+            pos += n;
+            remaining -= n;
+            ZServicer.throttleRead(n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Inflates raw DEFLATE data. Mirrors java.util.zip.ZipFile by supplying a
+     * dummy byte once the input has been exhausted, which the inflater may need
+     * in nowrap mode.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof;
+        private boolean closed;
+
+        EntryInflaterInputStream(InputStream in, long size) {
+            super(in, new Inflater(true), (int) Math.max(512, Math.min(size, 65536)));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof)
+                throw new EOFException("Unexpected end of zip entry.");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+
+    public static class Entry {
+
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, int flags, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+
+        /**
+         * @return True if the entry can be read by {@link ZipCentralDirectory#openEntry(FileChannel, Entry)}.
+         */
+        public boolean isSupported() {
+            return !isEncrypted() && (method == STORED || method == DEFLATED);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+}
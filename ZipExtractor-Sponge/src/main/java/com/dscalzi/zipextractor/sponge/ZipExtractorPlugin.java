@@ -22,6 +22,7 @@ import com.dscalzi.zipextractor.core.ZServicer;
 import com.dscalzi.zipextractor.core.managers.MessageManager;
 import com.dscalzi.zipextractor.core.util.ICommandSender;
 import com.dscalzi.zipextractor.core.util.IPlugin;
+import com.dscalzi.zipextractor.core.util.TickTimer;
 import com.dscalzi.zipextractor.sponge.managers.ConfigManager;
 import com.dscalzi.zipextractor.sponge.util.SpongeCommandSender;
 import com.google.inject.Inject;
@@ -37,6 +38,7 @@ import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.game.GameReloadEvent;
 import org.spongepowered.api.event.game.state.GamePostInitializationEvent;
 import org.spongepowered.api.event.game.state.GamePreInitializationEvent;
+import org.spongepowered.api.event.game.state.GameStartedServerEvent;
 import org.spongepowered.api.plugin.Plugin;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.scheduler.Task;
@@ -68,6 +70,8 @@ public class ZipExtractorPlugin implements IPlugin {
     @SuppressWarnings("unused")
     private Metrics2 metrics;
 
+    private final TickTimer tickTimer = new TickTimer();
+
     @Inject
     public ZipExtractorPlugin(Metrics2.Factory metricsFactory) {
         metrics = metricsFactory.make(3629);
@@ -97,7 +101,12 @@ public class ZipExtractorPlugin implements IPlugin {
         
         ConfigManager.initialize(this);
         MessageManager.initialize(this);
-        ZServicer.initalize(ConfigManager.getInstance().getMaxQueueSize(), ConfigManager.getInstance().getMaxPoolSize());
+        ZServicer.initalize(ConfigManager.getInstance().getMaxQueueSize(), ConfigManager.getInstance().getMaxPoolSize(), ConfigManager.getInstance().getWorkerThreads());
+        Task.builder().execute(tickTimer).intervalTicks(1).name("ZipExtractor Tick Timer").submit(this);
+        ZServicer.getInstance().configure(ConfigManager.getInstance(), tickTimer);
+        if (ConfigManager.getInstance().restoreUnfinishedTasks()) {
+            ZServicer.getInstance().openJournal(new File(getPluginDirectory(), "tasks.journal"));
+        }
         
         Sponge.getCommandManager().register(this, new MainExecutor(this), Arrays.asList("zipextractor", "ze"));
     }
@@ -119,15 +128,24 @@ public class ZipExtractorPlugin implements IPlugin {
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor setsrc.")).id(plugin.getId() + ".admin.setsrc").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor setdest.")).id(plugin.getId() + ".admin.setdest").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor plugindir.")).id(plugin.getId() + ".admin.plugindir").register();
+            opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor pause and /ZipExtractor resume.")).id(plugin.getId() + ".admin.pause").register();
+            opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor cancel.")).id(plugin.getId() + ".admin.cancel").register();
+            opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor throttle.")).id(plugin.getId() + ".admin.throttle").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor terminate.")).id(plugin.getId() + ".admin.terminate").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor forceterminate.")).id(plugin.getId() + ".admin.forceterminate").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor reload.")).id(plugin.getId() + ".admin.reload").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Access to harmless commands.")).id(plugin.getId() + ".harmless").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("User will be notified if the plugin broadcasts a message.")).id(plugin.getId() + ".harmless.notify").register();
             opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor status.")).id(plugin.getId() + ".harmless.status").register();
+            opdb.assign(PermissionDescription.ROLE_ADMIN, true).description(Text.of("Allow usage of /ZipExtractor tasks and /ZipExtractor task.")).id(plugin.getId() + ".harmless.tasks").register();
         }
     }
 
+    @Listener
+    public void onServerStarted(GameStartedServerEvent e) {
+        ZServicer.getInstance().restoreUnfinished(new SpongeCommandSender(game.getServer().getConsole()));
+    }
+
     @Listener
     public void onReload(GameReloadEvent e){
         reload();
@@ -178,7 +196,7 @@ public class ZipExtractorPlugin implements IPlugin {
     @Override
     public boolean reload() {
         if (ConfigManager.reloadStatic()) {
-            ZServicer.getInstance().setMaximumPoolSize(ConfigManager.getInstance().getMaxPoolSize());
+            ZServicer.getInstance().configure(ConfigManager.getInstance(), tickTimer);
             return true;
         }
         return false;
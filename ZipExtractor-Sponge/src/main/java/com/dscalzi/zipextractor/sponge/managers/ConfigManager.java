@@ -20,6 +20,8 @@ package com.dscalzi.zipextractor.sponge.managers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import org.spongepowered.api.asset.Asset;
@@ -183,6 +185,30 @@ public class ConfigManager implements IConfigManager {
             return config.getNode("general_settings", "warn_on_conflicts").getBoolean(true);
         }
     }
+
+    public boolean singlePassExtraction() {
+        if(config == null) {
+            return true;
+        } else {
+            return config.getNode("general_settings", "single_pass_extraction").getBoolean(true);
+        }
+    }
+
+    public boolean streamPipedExtraction() {
+        if(config == null) {
+            return true;
+        } else {
+            return config.getNode("general_settings", "stream_piped_extraction").getBoolean(true);
+        }
+    }
+
+    public boolean streamPipedCompression() {
+        if(config == null) {
+            return true;
+        } else {
+            return config.getNode("general_settings", "stream_piped_compression").getBoolean(true);
+        }
+    }
     
     public boolean tabCompleteFiles() {
         if(config == null) {
@@ -200,6 +226,14 @@ public class ConfigManager implements IConfigManager {
         }
     }
 
+    public boolean restoreUnfinishedTasks() {
+        if(config == null) {
+            return true;
+        } else {
+            return this.config.getNode("general_settings", "restore_unfinished_tasks").getBoolean(true);
+        }
+    }
+
     public int getMaxQueueSize() {
         if(config == null) {
             return 3;
@@ -220,6 +254,150 @@ public class ConfigManager implements IConfigManager {
         }
     }
 
+    public boolean autoTuneThreadPool() {
+        if(config == null) {
+            return false;
+        } else {
+            return config.getNode("general_settings", "auto_tune_thread_pool").getBoolean(false);
+        }
+    }
+
+    public int getMaxQueuedPerSender() {
+        if(config == null) {
+            return 0;
+        } else {
+            return Math.max(0, config.getNode("general_settings", "max_queued_per_sender").getInt(0));
+        }
+    }
+
+    public int getMaxRunningPerSender() {
+        if(config == null) {
+            return 0;
+        } else {
+            return Math.max(0, config.getNode("general_settings", "max_running_per_sender").getInt(0));
+        }
+    }
+
+    public int getWorkerThreads() {
+        if(config == null) {
+            return 1;
+        } else {
+            int limit = config.getNode("general_settings", "worker_threads").getInt(1);
+            if (limit < 1)
+                limit = 1;
+            return limit;
+        }
+    }
+
+    public int getIOThreads() {
+        if(config == null) {
+            return 1;
+        } else {
+            int limit = config.getNode("general_settings", "io_threads").getInt(1);
+            if (limit < 0)
+                limit = 0;
+            return limit;
+        }
+    }
+
+    public int getRotationalDeviceTasks() {
+        if(config == null) {
+            return 1;
+        } else {
+            int limit = config.getNode("general_settings", "rotational_device_tasks").getInt(1);
+            if (limit < 0)
+                limit = 0;
+            return limit;
+        }
+    }
+
+    public int getSolidStateDeviceTasks() {
+        if(config == null) {
+            return 4;
+        } else {
+            int limit = config.getNode("general_settings", "solid_state_device_tasks").getInt(4);
+            if (limit < 0)
+                limit = 0;
+            return limit;
+        }
+    }
+
+    public List<String> getDeviceTaskLimits() {
+        List<String> limits = new ArrayList<>();
+        if(config != null) {
+            for (CommentedConfigurationNode node : config.getNode("general_settings", "device_task_limits").getChildrenList()) {
+                if (node.getString() != null)
+                    limits.add(node.getString());
+            }
+        }
+        return limits;
+    }
+
+    public int getXZPreset() {
+        if(config == null) {
+            return 6;
+        } else {
+            return config.getNode("general_settings", "xz_preset").getInt(6);
+        }
+    }
+
+    public int getXZDictionarySize() {
+        if(config == null) {
+            return 0;
+        } else {
+            int size = config.getNode("general_settings", "xz_dictionary_size").getInt(0);
+            return size > 0 ? size << 20 : 0;
+        }
+    }
+
+    public long getMemoryBudget() {
+        long budget = 0;
+        if(config != null) {
+            budget = config.getNode("general_settings", "memory_budget").getLong(0);
+        }
+        if (budget == 0)
+            return Runtime.getRuntime().maxMemory() / 2;
+        return budget > 0 ? budget << 20 : 0;
+    }
+
+    public long getReadLimit() {
+        return rateOf("read_limit");
+    }
+
+    public long getWriteLimit() {
+        return rateOf("write_limit");
+    }
+
+    public long getTaskReadLimit() {
+        return rateOf("task_read_limit");
+    }
+
+    public long getTaskWriteLimit() {
+        return rateOf("task_write_limit");
+    }
+
+    public double getSlowDownTickTime() {
+        if(config == null) {
+            return 60;
+        }
+        return Math.max(0, config.getNode("general_settings", "slow_down_tick_time").getDouble(60));
+    }
+
+    public double getPauseTickTime() {
+        if(config == null) {
+            return 100;
+        }
+        return Math.max(0, config.getNode("general_settings", "pause_tick_time").getDouble(100));
+    }
+
+    private long rateOf(String key) {
+        if(config == null) {
+            return 0;
+        }
+        double limit = config.getNode("general_settings", key).getDouble(0);
+        return limit > 0 ? (long) (limit * (1 << 20)) : 0;
+    }
+
     public double getSystemConfigVersion() {
         // TODO Will be implemented in a later version
         return 1.0;